@@ -0,0 +1,124 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times {@link HDFPreprocessor#process} on one batch of slices: the
+ * histogram and every lower resolution level. The shapes are chosen to give
+ * batches of 1, 2, 4 and 8 slices, the Z reduction factor of the lowest
+ * resolution level, which {@link ResolutionLevelMaker} picks from the shape
+ * and pixel size. The score is the time per batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreprocessBenchmark {
+
+	/** Width x height x slices */
+	@Param({ "512x512x32", "512x512x128", "1024x1024x128", "1024x1024x512",
+		"2048x2048x128" })
+	public String shape;
+
+	@Param({ "UINT8", "UINT16" })
+	public String pixelType;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private BufferPool pool_;
+	private HDFPreprocessor preprocessor_;
+	private List<PipelineImage> batch_;
+	private int numSlices_, slice_;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final String[] size = shape.split("x");
+		final int width = Integer.parseInt(size[0]);
+		final int height = Integer.parseInt(size[1]);
+		numSlices_ = Integer.parseInt(size[2]);
+		final ImarisPixelType type = ImarisPixelType.valueOf(pixelType);
+		final ResolutionLevel[] resLevels =
+			ResolutionLevelMaker.calcLevels(width, height, numSlices_, 1, type
+				.getByteDepth());
+		pool_ = new BufferPool(resLevels, type);
+		preprocessor_ =
+			new HDFPreprocessor(width, height, type, resLevels, pool_, threads);
+		final int batchSize =
+			resLevels[resLevels.length - 1].getReductionFactorZ();
+		batch_ = new ArrayList<PipelineImage>(batchSize);
+		for (int i = 0; i < batchSize; i++) {
+			batch_.add(new PipelineImage(SyntheticData.makePlane(type, width,
+				height, i), 0, i, 0, "2012-11-08 16:14:17.000"));
+		}
+		slice_ = 0;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		preprocessor_.close();
+	}
+
+	@Benchmark
+	public PipelineImage process() {
+		// step through the stack, so that histograms are started and finished
+		// as often as when writing
+		for (int i = 0; i < batch_.size(); i++) {
+			batch_.get(i).slice = slice_ + i;
+		}
+		final PipelineImage img = preprocessor_.process(batch_);
+		slice_ += batch_.size();
+		if (slice_ >= numSlices_) {
+			slice_ = 0;
+		}
+		pool_.giveBatch(img);
+		return img;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.util.Random;
+
+/**
+ * Makes planes of synthetic pixels for the benchmarks: smooth blobs over a
+ * noisy background, so that compression and histograms see something like
+ * microscopy data rather than constant or random values.
+ */
+final class SyntheticData {
+
+	private SyntheticData() {}
+
+	/**
+	 * Makes a plane of UINT8 or UINT16 pixels. 16 bit pixels hold 12 bit
+	 * values, like most camera data.
+	 *
+	 * @param seed differs between planes, so they aren't all alike
+	 */
+	static Object makePlane(final ImarisPixelType pixelType, final int width,
+		final int height, final int seed)
+	{
+		final int max = pixelType == ImarisPixelType.UINT8 ? 255 : 4095;
+		final Object pixels = pixelType.newArray(width * height);
+		final Random random = new Random(seed);
+		final double phase = seed * 0.7;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final double signal =
+					0.5 + 0.25 * Math.sin(x * 0.05 + phase) * Math.cos(y * 0.04 - phase);
+				final double noise = 0.05 * random.nextGaussian();
+				final int value =
+					(int) Math.max(0, Math.min(max, Math.round((signal + noise) * max)));
+				if (pixels instanceof byte[]) {
+					((byte[]) pixels)[y * width + x] = (byte) value;
+				}
+				else {
+					((short[]) pixels)[y * width + x] = (short) value;
+				}
+			}
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times writing a whole file with {@link ImarisWriter}, from the first
+ * {@code addImage} to the end of {@code close}, into a temporary directory.
+ * Each file holds {@value #NUM_CHANNELS} channels of {@value #NUM_FRAMES}
+ * time points of {@value #NUM_SLICES} slices of 16 bit pixels, and the score
+ * is in full resolution planes per second. The directory should be on the
+ * disk of interest, see {@code -Djava.io.tmpdir}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WriterBenchmark {
+
+	static final int NUM_CHANNELS = 2;
+	static final int NUM_FRAMES = 2;
+	static final int NUM_SLICES = 32;
+	private static final int NUM_PLANES = NUM_CHANNELS * NUM_FRAMES *
+		NUM_SLICES;
+	// planes are reused, the writer never modifies them
+	private static final int NUM_DISTINCT_PLANES = 8;
+
+	/** Width and height of the planes */
+	@Param({ "512", "1024" })
+	public int size;
+
+	/** Name of an {@link ImarisCompression} constant */
+	@Param({ "NONE", "DEFLATE_2", "SHUFFLE_DEFLATE_2" })
+	public String compression;
+
+	private File dir_;
+	private Object[] planes_;
+	private int count_;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir_ = Files.createTempDirectory("imaris-benchmark").toFile();
+		planes_ = new Object[NUM_DISTINCT_PLANES];
+		for (int i = 0; i < planes_.length; i++) {
+			planes_[i] =
+				SyntheticData.makePlane(ImarisPixelType.UINT16, size, size, i);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		final File[] files = dir_.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		dir_.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM_PLANES)
+	public long write() {
+		final File file = new File(dir_, "benchmark" + count_++ + ".ims");
+		final ImarisWriterOptions options =
+			new ImarisWriterOptions().setCompression(ImarisCompression
+				.valueOf(compression));
+		final ImarisWriter writer =
+			new ImarisWriter(file.getPath(), size, size, NUM_SLICES, NUM_CHANNELS,
+				NUM_FRAMES, 1, 1, ImarisPixelType.UINT16, 12, null, options);
+		int plane = 0;
+		for (int frame = 0; frame < NUM_FRAMES; frame++) {
+			for (int slice = 0; slice < NUM_SLICES; slice++) {
+				for (int channel = 0; channel < NUM_CHANNELS; channel++) {
+					writer.addImage(planes_[plane++ % planes_.length], slice, channel,
+						frame, "2012-11-08 16:14:17.000");
+				}
+			}
+		}
+		writer.close();
+		final long length = file.length();
+		// keep the disk from filling up over many invocations
+		file.delete();
+		return length;
+	}
+}
@@ -34,33 +34,52 @@
 
 package io.scif.formats;
 
+import io.scif.AbstractChecker;
 import io.scif.AbstractFormat;
+import io.scif.AbstractMetadata;
+import io.scif.AbstractParser;
+import io.scif.AbstractTranslator;
 import io.scif.AbstractWriter;
-import io.scif.DefaultMetadata;
+import io.scif.ByteArrayPlane;
+import io.scif.ByteArrayReader;
 import io.scif.Format;
 import io.scif.FormatException;
-import io.scif.Metadata;
+import io.scif.ImageMetadata;
 import io.scif.Plane;
+import io.scif.Translator;
 import io.scif.config.SCIFIOConfig;
+import io.scif.formats.imaris.ImarisCompression;
+import io.scif.formats.imaris.ImarisPixelType;
+import io.scif.formats.imaris.ImarisReader;
 import io.scif.formats.imaris.ImarisWriter;
+import io.scif.formats.imaris.ImarisWriterMetrics;
+import io.scif.formats.imaris.ImarisWriterOptions;
 import io.scif.util.FormatTools;
 import io.scif.util.SCIFIOMetadataTools;
 
 import java.awt.image.ColorModel;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.List;
 
 import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
 import net.imglib2.Interval;
 
+import hdf.hdf5lib.exceptions.HDF5Exception;
+
+import org.scijava.Priority;
 import org.scijava.io.handle.DataHandle;
 import org.scijava.io.location.FileLocation;
 import org.scijava.io.location.Location;
 import org.scijava.plugin.Plugin;
 
 /**
- * SCIFIO Format supporting the writer for Imaris 5.5 files
+ * SCIFIO Format for reading and writing Imaris 5.5 files. When reading, each
+ * resolution level of the file is a separate image, full resolution first.
  *
  * @author Henry Pinkard
  */
@@ -77,14 +96,245 @@ public class ImarisFormat extends AbstractFormat {
 		return new String[] { "ims" };
 	}
 
-	public static class Writer extends AbstractWriter<DefaultMetadata> {
+	public static class Metadata extends AbstractMetadata {
+
+		private ImarisReader reader;
+
+		public ImarisReader getImarisReader() {
+			return reader;
+		}
+
+		public void setImarisReader(final ImarisReader reader) {
+			this.reader = reader;
+		}
+
+		// One image per resolution level. Metadata translated for writing has no
+		// reader and keeps the images it was given
+		@Override
+		public void populateImageMetadata() {
+			if (reader == null) {
+				return;
+			}
+			final ImarisPixelType pixelType = reader.getPixelType();
+			createImageMetadata(reader.getNumResolutionLevels());
+			for (int level = 0; level < reader.getNumResolutionLevels(); level++) {
+				final ImageMetadata imageMeta = get(level);
+				// Imaris stores the extents of the image, so pixels grow as the
+				// levels get smaller
+				imageMeta.setAxes(new DefaultLinearAxis(Axes.X, "um", reader
+					.getPixelSize(0) * reader.getSizeX(0) / reader.getSizeX(level)),
+					new DefaultLinearAxis(Axes.Y, "um", reader.getPixelSize(1) * reader
+						.getSizeY(0) / reader.getSizeY(level)), new DefaultLinearAxis(
+						Axes.Z, "um", reader.getPixelSize(2) * reader.getSizeZ(0) / reader
+							.getSizeZ(level)), new DefaultLinearAxis(Axes.CHANNEL, "", 1),
+					new DefaultLinearAxis(Axes.TIME, "", 1));
+				imageMeta.setAxisLengths(new long[] { reader.getSizeX(level), reader
+					.getSizeY(level), reader.getSizeZ(level), reader.getNumChannels(),
+					reader.getNumTimePoints() });
+				imageMeta.setPlanarAxisCount(2);
+				imageMeta.setPixelType(getFormatPixelType(pixelType));
+				imageMeta.setBitsPerPixel(pixelType.getByteDepth() * 8);
+				imageMeta.setLittleEndian(true);
+				imageMeta.setOrderCertain(true);
+				imageMeta.setMetadataComplete(true);
+				imageMeta.setName("Resolution Level " + level);
+			}
+		}
+
+		@Override
+		public void close(final boolean fileOnly) throws IOException {
+			if (reader != null) {
+				reader.close();
+				reader = null;
+			}
+			super.close(fileOnly);
+		}
+
+		private static int getFormatPixelType(final ImarisPixelType pixelType) {
+			switch (pixelType) {
+				case UINT8:
+					return FormatTools.UINT8;
+				case UINT16:
+					return FormatTools.UINT16;
+				case UINT32:
+					return FormatTools.UINT32;
+				default:
+					return FormatTools.FLOAT;
+			}
+		}
+	}
+
+	public static class Checker extends AbstractChecker {
+
+		@Override
+		public boolean suffixSufficient() {
+			return true;
+		}
+	}
+
+	public static class Parser extends AbstractParser<Metadata> {
+
+		/**
+		 * {@link SCIFIOConfig} key for the number of megabytes of decompressed
+		 * chunks kept in memory while reading. Defaults to 256.
+		 */
+		public static final String CHUNK_CACHE_KEY = "imaris.reader.chunkCache";
+
+		// The file is read through the HDF5 library rather than the stream
+		@Override
+		protected void typedParse(final DataHandle<Location> stream,
+			final Metadata meta, final SCIFIOConfig config) throws IOException,
+			FormatException
+		{
+			if (!(stream.get() instanceof FileLocation)) {
+				throw new FormatException("Imaris format only supports local files!");
+			}
+			final String path =
+				((FileLocation) stream.get()).getFile().getAbsolutePath();
+			try {
+				meta.setImarisReader(new ImarisReader(path, (long) Writer.getInt(
+					config, CHUNK_CACHE_KEY, 256) * 1048576));
+			}
+			catch (final HDF5Exception e) {
+				throw new FormatException("Can't open Imaris file " + path, e);
+			}
+		}
+	}
+
+	public static class Reader extends ByteArrayReader<Metadata> {
+
+		@Override
+		protected String[] createDomainArray() {
+			return new String[] { FormatTools.LM_DOMAIN };
+		}
+
+		// Only the requested region is read, at the resolution level of the image
+		@Override
+		public ByteArrayPlane openPlane(final int imageIndex,
+			final long planeIndex, final ByteArrayPlane plane,
+			final Interval bounds, final SCIFIOConfig config)
+			throws FormatException, IOException
+		{
+			final Metadata meta = getMetadata();
+			final byte[] buf = plane.getData();
+			FormatTools.checkPlaneForReading(meta, imageIndex, planeIndex,
+				buf.length, bounds);
+			// Axes are Z, Channel, Time after the planar ones
+			final long[] position =
+				FormatTools.rasterToPosition(meta.get(imageIndex)
+					.getAxesLengthsNonPlanar(), planeIndex);
+			try {
+				meta.getImarisReader().read(imageIndex, (int) position[2],
+					(int) position[1], (int) position[0], (int) bounds.min(0),
+					(int) bounds.min(1), (int) bounds.dimension(0), (int) bounds
+						.dimension(1), buf);
+			}
+			catch (final HDF5Exception e) {
+				throw new FormatException("Can't read plane " + planeIndex, e);
+			}
+			return plane;
+		}
+	}
+
+	public static class Writer extends AbstractWriter<Metadata> {
+
+		/**
+		 * {@link SCIFIOConfig} key for the number of threads used to downsample
+		 * and histogram images. Defaults to 1.
+		 */
+		public static final String THREADS_KEY = "imaris.writer.threads";
+
+		/**
+		 * {@link SCIFIOConfig} key for the number of preprocessed batches that may
+		 * wait to be written before saving a plane blocks. Defaults to 2.
+		 */
+		public static final String QUEUE_DEPTH_KEY = "imaris.writer.queueDepth";
+
+		/**
+		 * {@link SCIFIOConfig} key for the number of planes that may wait to be
+		 * preprocessed before saving a plane blocks. Defaults to one batch of
+		 * slices in every channel.
+		 */
+		public static final String INGEST_DEPTH_KEY = "imaris.writer.ingestDepth";
+
+		/**
+		 * {@link SCIFIOConfig} key for the number of megabytes of planes waiting
+		 * to be put in order that are kept in memory, before they are moved to a
+		 * scratch file. Defaults to 256.
+		 */
+		public static final String REORDER_MEMORY_KEY =
+			"imaris.writer.reorderMemory";
+
+		/**
+		 * {@link SCIFIOConfig} key for the directory of the scratch file planes
+		 * waiting to be put in order are moved to. Defaults to the temporary
+		 * directory.
+		 */
+		public static final String SCRATCH_DIRECTORY_KEY =
+			"imaris.writer.scratchDirectory";
+
+		/**
+		 * {@link SCIFIOConfig} key for whether 16 bit data also gets a histogram
+		 * with a bin for every value. Defaults to false.
+		 */
+		public static final String FULL_HISTOGRAM_KEY =
+			"imaris.writer.fullHistogram";
+
+		/**
+		 * {@link SCIFIOConfig} key for whether slices written through the HDF5
+		 * filter pipeline are collected into whole Z blocks before they are
+		 * written. Defaults to false.
+		 */
+		public static final String STACK_SLICES_KEY = "imaris.writer.stackSlices";
+
+		/**
+		 * {@link SCIFIOConfig} key for the number of megabytes of HDF5 chunk
+		 * cache shared by the image datasets of a time point. Defaults to 256.
+		 */
+		public static final String CHUNK_CACHE_KEY = "imaris.writer.chunkCache";
+
+		/**
+		 * {@link SCIFIOConfig} key for whether time points are streamed: the
+		 * number of time points is left open and the number written is recorded
+		 * when the writer is closed, so a file cut short is still complete.
+		 * Defaults to false, which writes the number of time points of the
+		 * metadata.
+		 */
+		public static final String STREAM_KEY = "imaris.writer.stream";
+
+		/**
+		 * {@link SCIFIOConfig} key for whether an existing file is appended to,
+		 * resuming an interrupted write. Planes of time points that are already
+		 * complete in the file are skipped. Defaults to false.
+		 */
+		public static final String APPEND_KEY = "imaris.writer.append";
+
+		/**
+		 * {@link SCIFIOConfig} key for the number of complete time points
+		 * between flushes of the file. Defaults to 0, which only flushes it when
+		 * it is closed.
+		 */
+		public static final String FLUSH_INTERVAL_KEY =
+			"imaris.writer.flushInterval";
+
+		/**
+		 * {@link SCIFIOConfig} key for an {@link ImarisWriterMetrics.Listener}
+		 * given the writer's metrics after every time point.
+		 */
+		public static final String METRICS_LISTENER_KEY =
+			"imaris.writer.metricsListener";
 
 		private ImarisWriter imsWriter;
+		private final ImarisWriterOptions options = new ImarisWriterOptions();
 		private String path;
+		private ImarisPixelType pixelType;
 		private int bitDepth;
 		private long sizeX, sizeY, sizeZ, sizeC, sizeT;
+		private boolean stream;
 		private double pixelSizeXY, pixelSizeZ;
 		private ColorModel colorModel;
+		// whether planes are written as tiles, decided by the first plane
+		private boolean tiles;
 
 		// SCIFIO will internally (1) initialize, (2) save planes, and (3) close the
 		// writer
@@ -93,8 +343,11 @@ public class ImarisFormat extends AbstractFormat {
 		// writer.setMetadata(destMeta) called, and finally
 		// writer.setDest(destination, config);
 		@Override
-		public void setMetadata(final Metadata meta) throws FormatException {
+		public void setMetadata(final io.scif.Metadata meta)
+			throws FormatException
+		{
 			// read metadata for writer initialization
+			pixelType = getPixelType(meta.get(0).getPixelType());
 			bitDepth = meta.get(0).getBitsPerPixel();
 			sizeX = meta.get(0).getAxisLength(Axes.X);
 			sizeY = meta.get(0).getAxisLength(Axes.Y);
@@ -162,6 +415,42 @@ public class ImarisFormat extends AbstractFormat {
 			IOException
 		{
 			colorModel = config.writerGetColorModel();
+			if (config.writerGetCompression() != null) {
+				try {
+					options.setCompression(ImarisCompression.fromName(config
+						.writerGetCompression()));
+				}
+				catch (final IllegalArgumentException e) {
+					throw new FormatException(e.getMessage());
+				}
+			}
+			options.setThreads(getInt(config, THREADS_KEY, options.getThreads()));
+			options.setQueueDepth(getInt(config, QUEUE_DEPTH_KEY, options
+				.getQueueDepth()));
+			options.setIngestDepth(getInt(config, INGEST_DEPTH_KEY, options
+				.getIngestDepth()));
+			options.setReorderMemory(getInt(config, REORDER_MEMORY_KEY, options
+				.getReorderMemory()));
+			options.setFullHistogram(getBoolean(config, FULL_HISTOGRAM_KEY, options
+				.isFullHistogram()));
+			options.setStackSlices(getBoolean(config, STACK_SLICES_KEY, options
+				.isStackSlices()));
+			options.setChunkCache(getInt(config, CHUNK_CACHE_KEY, options
+				.getChunkCache()));
+			stream = getBoolean(config, STREAM_KEY, stream);
+			options.setAppend(getBoolean(config, APPEND_KEY, options.isAppend()));
+			options.setFlushInterval(getInt(config, FLUSH_INTERVAL_KEY, options
+				.getFlushInterval()));
+			if (config.get(METRICS_LISTENER_KEY) instanceof
+				ImarisWriterMetrics.Listener)
+			{
+				options.setMetricsListener((ImarisWriterMetrics.Listener) config.get(
+					METRICS_LISTENER_KEY));
+			}
+			if (config.get(SCRATCH_DIRECTORY_KEY) != null) {
+				options.setScratchDirectory(new File(config.get(SCRATCH_DIRECTORY_KEY)
+					.toString()));
+			}
 
 //		if (metadata == null) throw new FormatException(
 //			"Can not set Destination without setting Metadata first.");
@@ -183,11 +472,10 @@ public class ImarisFormat extends AbstractFormat {
 //		}
 		}
 
-		// If your writer supports a compression type, you can declare that here.
-		// Otherwise it is sufficient to return an empty String[]
+		// See ImarisCompression for what each type does
 		@Override
 		protected String[] makeCompressionTypes() {
-			return new String[0];
+			return ImarisCompression.getNames();
 		}
 
 		// ///////////////
@@ -225,71 +513,110 @@ public class ImarisFormat extends AbstractFormat {
 			final Plane plane, final Interval bounds) throws FormatException,
 			IOException
 		{
-			if (!SCIFIOMetadataTools.wholePlane(imageIndex, getMetadata(), bounds))
-			{
-				throw new FormatException(
-					"Imaris writer does not support saving image tiles.");
-			}
-			
+			final boolean wholePlane =
+				SCIFIOMetadataTools.wholePlane(imageIndex, getMetadata(), bounds);
 			if (imsWriter == null) {
+				tiles = !wholePlane;
+				// a streamed file records the time points written when it's closed
 				imsWriter =
-					new ImarisWriter(path, sizeX, sizeY, sizeZ, sizeC, sizeT,
-						pixelSizeXY, pixelSizeZ, bitDepth, null);
+					new ImarisWriter(path, sizeX, sizeY, sizeZ, sizeC, stream ? 0
+						: sizeT, pixelSizeXY, pixelSizeZ, pixelType, bitDepth, null,
+						options);
 			}
-
-			final int zAxis = plane.getImageMetadata().getAxisIndex(Axes.Z);
-			final int channelAxis =
-				plane.getImageMetadata().getAxisIndex(Axes.CHANNEL);
-			final int frameAxis = plane.getImageMetadata().getAxisIndex(Axes.TIME);
-			int t, z, c;
-			if (frameAxis != -1 && (frameAxis < zAxis || frameAxis < channelAxis)) {
+			else if (!tiles && !wholePlane) {
+				// whole planes are batched, so their tiles can't be mixed in
 				throw new FormatException(
-					"Unsupported plane ordering: Imaris writer can only write"
-						+ "in CZT or ZCT sequence");
+					"Imaris writer can only save image tiles if the first plane is a tile.");
 			}
-			else {
-				t = (int) (planeIndex / (sizeC * sizeZ));
-				if (channelAxis < zAxis) {
-					// channels first or no channels
-					z = (int) ((planeIndex / sizeC) % sizeZ);
-					c = (int) (planeIndex % sizeC);
+
+			// Planes may come in any order, the Imaris writer puts them back in
+			// the order it writes them in
+			final ImageMetadata imageMeta = plane.getImageMetadata();
+			final long[] position =
+				FormatTools.rasterToPosition(imageMeta.getAxesLengthsNonPlanar(),
+					planeIndex);
+			final List<CalibratedAxis> axes = imageMeta.getAxesNonPlanar();
+			int t = 0, z = 0, c = 0;
+			for (int i = 0; i < axes.size(); i++) {
+				if (axes.get(i).type() == Axes.Z) {
+					z = (int) position[i];
 				}
-				else {
-					// slices first or no slices
-					c = (int) ((planeIndex / sizeZ) % sizeC);
-					z = (int) (planeIndex % sizeZ);
+				else if (axes.get(i).type() == Axes.CHANNEL) {
+					c = (int) position[i];
+				}
+				else if (axes.get(i).type() == Axes.TIME) {
+					t = (int) position[i];
 				}
 			}
+			if (t < imsWriter.getFirstFrame()) {
+				// already in the file being appended to
+				return;
+			}
 			// Get date and time. Used for image timestamps,
 			// which are important for calibration in ims files
 			// Date + Time format
 			// "YYYY-MM-DD HH:MM:SS.XXX"
 			// TODO: replace with reading from metadata
 			final String dnt = "2014-01-01 00:00:00.00" + t;
-			// Accepts byte[] or short[] pixels, convert as needed
-			Object pixels;
-			final int pixelType = plane.getImageMetadata().getPixelType();
-			if (pixelType == FormatTools.INT8 || pixelType == FormatTools.UINT8) {
-				pixels = plane.getBytes();
-			}
-			else if (pixelType == FormatTools.INT16 ||
-				pixelType == FormatTools.UINT16)
-			{
-				final byte[] bytes = plane.getBytes();
-				final short[] shorts = new short[bytes.length / 2];
-				ByteBuffer.wrap(bytes).order(
-					plane.getImageMetadata().isLittleEndian() ? ByteOrder.LITTLE_ENDIAN
-						: ByteOrder.BIG_ENDIAN).asShortBuffer().get(shorts);
-				pixels = shorts;
+			// 16 bit pixels are passed on as bytes, the HDF5 library takes care of
+			// their byte order. 32 bit pixels are converted in bulk, as the
+			// preprocessor needs their values. Planes are written after this
+			// returns and their bytes may be reused, so other pixels are copied
+			final byte[] bytes = plane.getBytes();
+			final ByteOrder byteOrder =
+				plane.getImageMetadata().isLittleEndian() ? ByteOrder.LITTLE_ENDIAN
+					: ByteOrder.BIG_ENDIAN;
+			final Object pixels;
+			if (pixelType == ImarisPixelType.UINT32) {
+				final int[] ints = new int[bytes.length / 4];
+				ByteBuffer.wrap(bytes).order(byteOrder).asIntBuffer().get(ints);
+				pixels = ints;
+			}
+			else if (pixelType == ImarisPixelType.FLOAT32) {
+				final float[] floats = new float[bytes.length / 4];
+				ByteBuffer.wrap(bytes).order(byteOrder).asFloatBuffer().get(floats);
+				pixels = floats;
+			}
+			else {
+				pixels = bytes.clone();
+			}
+
+			final int x = (int) bounds.min(0), y = (int) bounds.min(1);
+			final int width = (int) bounds.dimension(0);
+			final int height = (int) bounds.dimension(1);
+			if (tiles) {
+				// tiles go straight to their place at full resolution
+				if (pixelType == ImarisPixelType.UINT16) {
+					imsWriter.addTile((byte[]) pixels, byteOrder, x, y, width, height, z,
+						c, t, dnt);
+				}
+				else {
+					imsWriter.addTile(pixels, x, y, width, height, z, c, t, dnt);
+				}
+			}
+			else if (pixelType == ImarisPixelType.UINT16) {
+				imsWriter.addImage((byte[]) pixels, byteOrder, z, c, t, dnt);
 			}
 			else {
-				throw new FormatException("Unsupported pixel type: Imaris writer only "
-					+ "supports 8 or 16 bit pixels");
+				imsWriter.addImage(pixels, z, c, t, dnt);
 			}
 
-//         System.out.println(planeIndex + "\t" + c + "\t" + z + "\t" + t);
-			imsWriter.addImage(pixels, z, c, t, dnt);
+		}
+
+		/**
+		 * Gets the writer that planes are passed to, or null if no plane has been
+		 * saved yet. Its queue size shows whether writing is falling behind.
+		 */
+		public ImarisWriter getImarisWriter() {
+			return imsWriter;
+		}
 
+		/**
+		 * Gets a snapshot of the metrics of writing so far, or null if no plane
+		 * has been saved yet.
+		 */
+		public ImarisWriterMetrics.Snapshot getMetrics() {
+			return imsWriter == null ? null : imsWriter.getMetrics();
 		}
 
 		@Override
@@ -297,5 +624,96 @@ public class ImarisFormat extends AbstractFormat {
 //         close(false);
 			imsWriter.close();
 		}
+
+		// Signed 8 and 16 bit types are written with the bits of their unsigned
+		// counterparts, as they always have been. Signed 32 bit pixels would
+		// come out as huge unsigned values, so they are refused
+		private static ImarisPixelType getPixelType(final int pixelType)
+			throws FormatException
+		{
+			switch (pixelType) {
+				case FormatTools.INT8:
+				case FormatTools.UINT8:
+					return ImarisPixelType.UINT8;
+				case FormatTools.INT16:
+				case FormatTools.UINT16:
+					return ImarisPixelType.UINT16;
+				case FormatTools.UINT32:
+					return ImarisPixelType.UINT32;
+				case FormatTools.FLOAT:
+					return ImarisPixelType.FLOAT32;
+				case FormatTools.INT32:
+					throw new FormatException("Unsupported pixel type: Imaris files " +
+						"can't hold signed 32 bit pixels, convert them to float first");
+				default:
+					throw new FormatException("Unsupported pixel type: Imaris writer " +
+						"only supports 8 and 16 bit integer, unsigned 32 bit integer and " +
+						"32 bit float pixels");
+			}
+		}
+
+		// Reads an integer option, which may have been stored as a number or a
+		// string
+		private static int getInt(final SCIFIOConfig config, final String key,
+			final int defaultValue) throws FormatException
+		{
+			final Object value = config.get(key);
+			if (value == null) {
+				return defaultValue;
+			}
+			if (value instanceof Number) {
+				return ((Number) value).intValue();
+			}
+			try {
+				return Integer.parseInt(value.toString().trim());
+			}
+			catch (final NumberFormatException e) {
+				throw new FormatException("Invalid value for " + key + ": " + value);
+			}
+		}
+
+		// Reads a boolean option, which may have been stored as a boolean or a
+		// string
+		private static boolean getBoolean(final SCIFIOConfig config,
+			final String key, final boolean defaultValue)
+		{
+			final Object value = config.get(key);
+			if (value == null) {
+				return defaultValue;
+			}
+			if (value instanceof Boolean) {
+				return (Boolean) value;
+			}
+			return Boolean.parseBoolean(value.toString().trim());
+		}
+	}
+
+	/**
+	 * Copies the images of any metadata, so that they can be written.
+	 */
+	@Plugin(type = Translator.class, priority = Priority.LOW)
+	public static class ImarisTranslator extends
+		AbstractTranslator<io.scif.Metadata, Metadata>
+	{
+
+		@Override
+		public Class<? extends io.scif.Metadata> source() {
+			return io.scif.Metadata.class;
+		}
+
+		@Override
+		public Class<? extends io.scif.Metadata> dest() {
+			return Metadata.class;
+		}
+
+		@Override
+		protected void translateImageMetadata(final List<ImageMetadata> source,
+			final Metadata dest)
+		{
+			dest.createImageMetadata(0);
+			for (final ImageMetadata imageMeta : source) {
+				dest.add(imageMeta.copy());
+			}
+		}
 	}
 }
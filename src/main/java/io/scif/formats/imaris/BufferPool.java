@@ -0,0 +1,154 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.util.ArrayDeque;
+
+/**
+ * Recycles the pixel arrays of lower resolution levels and the
+ * {@link PipelineImage}s that carry them, so that a steady stream of images
+ * can be preprocessed and written without allocating per image. Arrays are
+ * pooled by resolution level, since all images of a level have the same
+ * size. Buffers are taken on the preprocessing side and given back by the
+ * writing thread once they have been written, so all methods are thread safe.
+ */
+public class BufferPool {
+
+	private final int[] numPixels_;
+	private final ImarisPixelType pixelType_;
+	private final ArrayDeque<Object>[] pixels_;
+	private final int batchSize_;
+	private final ArrayDeque<PipelineImage> images_, batches_;
+
+	@SuppressWarnings("unchecked")
+	public BufferPool(final ResolutionLevel[] resLevels,
+		final ImarisPixelType pixelType)
+	{
+		pixelType_ = pixelType;
+		numPixels_ = new int[resLevels.length];
+		pixels_ = new ArrayDeque[resLevels.length];
+		for (int level = 0; level < resLevels.length; level++) {
+			numPixels_[level] =
+				resLevels[level].getImageSizeX() * resLevels[level].getImageSizeY();
+			pixels_[level] = new ArrayDeque<Object>();
+		}
+		batchSize_ = resLevels[resLevels.length - 1].getReductionFactorZ();
+		images_ = new ArrayDeque<PipelineImage>();
+		batches_ = new ArrayDeque<PipelineImage>();
+	}
+
+	/**
+	 * Gets an array of the pixel type big enough for one image at the given
+	 * resolution level. Its contents are undefined.
+	 */
+	public Object takePixels(final int level) {
+		synchronized (pixels_[level]) {
+			final Object pixels = pixels_[level].pollFirst();
+			if (pixels != null) {
+				return pixels;
+			}
+		}
+		return pixelType_.newArray(numPixels_[level]);
+	}
+
+	public void givePixels(final int level, final Object pixels) {
+		synchronized (pixels_[level]) {
+			pixels_[level].addFirst(pixels);
+		}
+	}
+
+	/**
+	 * Gets an image to hold one full resolution slice.
+	 */
+	public PipelineImage takeImage() {
+		synchronized (images_) {
+			final PipelineImage img = images_.pollFirst();
+			if (img != null) {
+				return img;
+			}
+		}
+		return new PipelineImage(null, 0, 0, 0, null);
+	}
+
+	/**
+	 * Returns an image taken with {@link #takeImage()}. Its pixels belong to
+	 * the caller of {@link ImarisWriter#addImage} and are not pooled.
+	 */
+	public void giveImage(final PipelineImage img) {
+		img.pixels = null;
+		img.histogram = null;
+		img.dateAndtime = null;
+		img.width = 0;
+		img.height = 0;
+		img.byteOrder = null;
+		synchronized (images_) {
+			images_.addFirst(img);
+		}
+	}
+
+	/**
+	 * Gets an image to hold a preprocessed batch of slices, whose pixels are an
+	 * {@code Object[resolution level][slice]} array of null entries.
+	 */
+	public PipelineImage takeBatch() {
+		synchronized (batches_) {
+			final PipelineImage img = batches_.pollFirst();
+			if (img != null) {
+				return img;
+			}
+		}
+		return new PipelineImage(new Object[numPixels_.length][batchSize_], 0, 0,
+			0, null);
+	}
+
+	/**
+	 * Returns a batch taken with {@link #takeBatch()} once it has been written.
+	 * Pixels of lower resolution levels go back to the pool; full resolution
+	 * pixels belong to the caller of {@link ImarisWriter#addImage} and are
+	 * dropped.
+	 */
+	public void giveBatch(final PipelineImage img) {
+		final Object[][] levels = (Object[][]) img.pixels;
+		for (int level = 0; level < levels.length; level++) {
+			for (int i = 0; i < levels[level].length; i++) {
+				if (level > 0 && levels[level][i] != null) {
+					givePixels(level, levels[level][i]);
+				}
+				levels[level][i] = null;
+			}
+		}
+		img.histogram = null;
+		img.dateAndtime = null;
+		img.byteOrder = null;
+		synchronized (batches_) {
+			batches_.addFirst(img);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps decompressed chunks of an Imaris file in direct buffers, so that
+ * reading neighboring planes, which mostly fall in the same chunks,
+ * decompresses each chunk only once. Chunks are identified by resolution
+ * level, time point, channel and their index in the dataset. Once the chunks
+ * held take more than the budget, the least recently used ones are dropped.
+ * All methods are thread safe.
+ */
+public class ChunkCache {
+
+	private final long maxBytes_;
+	private long bytes_;
+	private long hits_, misses_;
+	// least recently used first
+	private final LinkedHashMap<Key, ByteBuffer> chunks_ =
+		new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+
+	/**
+	 * @param maxBytes number of bytes of chunks that may be held
+	 */
+	public ChunkCache(final long maxBytes) {
+		maxBytes_ = Math.max(0, maxBytes);
+	}
+
+	/**
+	 * Gets a cached chunk, or null if it has to be read. Callers must not
+	 * change the position or limit of the buffer returned.
+	 */
+	public synchronized ByteBuffer get(final int level, final int timePoint,
+		final int channel, final long index)
+	{
+		final ByteBuffer chunk =
+			chunks_.get(new Key(level, timePoint, channel, index));
+		if (chunk == null) {
+			misses_++;
+		}
+		else {
+			hits_++;
+		}
+		return chunk;
+	}
+
+	/**
+	 * Copies a chunk into the cache, evicting the least recently used chunks
+	 * to make room. Chunks bigger than the whole budget aren't kept.
+	 */
+	public synchronized void put(final int level, final int timePoint,
+		final int channel, final long index, final byte[] chunk)
+	{
+		if (chunk.length > maxBytes_) {
+			return;
+		}
+		final Key key = new Key(level, timePoint, channel, index);
+		final ByteBuffer old = chunks_.remove(key);
+		if (old != null) {
+			bytes_ -= old.capacity();
+		}
+		final Iterator<ByteBuffer> it = chunks_.values().iterator();
+		while (bytes_ + chunk.length > maxBytes_ && it.hasNext()) {
+			bytes_ -= it.next().capacity();
+			it.remove();
+		}
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(chunk.length);
+		buffer.put(chunk);
+		buffer.clear();
+		chunks_.put(key, buffer);
+		bytes_ += chunk.length;
+	}
+
+	/** Drops every chunk. The hit and miss counts are kept. */
+	public synchronized void clear() {
+		chunks_.clear();
+		bytes_ = 0;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes_;
+	}
+
+	/** Gets the number of bytes of chunks held. */
+	public synchronized long getBytes() {
+		return bytes_;
+	}
+
+	/** Gets the number of lookups that found their chunk. */
+	public synchronized long getHits() {
+		return hits_;
+	}
+
+	/** Gets the number of lookups for chunks that had to be read. */
+	public synchronized long getMisses() {
+		return misses_;
+	}
+
+	private static final class Key {
+
+		private final int level_, timePoint_, channel_;
+		private final long index_;
+
+		private Key(final int level, final int timePoint, final int channel,
+			final long index)
+		{
+			level_ = level;
+			timePoint_ = timePoint;
+			channel_ = channel;
+			index_ = index;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key key = (Key) obj;
+			return level_ == key.level_ && timePoint_ == key.timePoint_ &&
+				channel_ == key.channel_ && index_ == key.index_;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = level_;
+			hash = 31 * hash + timePoint_;
+			hash = 31 * hash + channel_;
+			return 31 * hash + (int) (index_ ^ index_ >>> 32);
+		}
+	}
+}
@@ -29,192 +29,256 @@
 
 package io.scif.formats.imaris;
 
-import java.util.LinkedList;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class HDFPreprocessor {
 
 	private final int batchSize_;
 	private final ResolutionLevel[] resLevels_;
-	private final TreeMap<Integer, long[][]> histograms_;
-	private final int bitDepth_;
-	private final int width_, height_;
+	private final ImarisPixelType pixelType_;
+	private final TreeMap<Integer, Histogram> histograms_;
+	private final PyramidBuilder pyramidBuilder_;
+	private final BufferPool pool_;
+	private final ExecutorService executor_;
+	// partial histograms counted in parallel mode, one per thread
+	private final List<HistogramTask> histogramTasks_;
+	// scratch space reused by every batch
+	private Object[] batchPixels_;
+	// full resolution pixels of each channel histogrammed so far, in tile mode
+	private final TreeMap<Integer, Long> tilePixels_;
+	private final Object[] tile_ = new Object[1];
 
 	public HDFPreprocessor(final int width, final int height, final int bitDepth,
 		final ResolutionLevel[] resLevels)
 	{
-		bitDepth_ = bitDepth;
+		this(width, height, ImarisPixelType.fromBitDepth(bitDepth), resLevels,
+			new BufferPool(resLevels, ImarisPixelType.fromBitDepth(bitDepth)), 1);
+	}
+
+	/**
+	 * @param pool pool the lower resolution pixels and preprocessed batches are
+	 *          taken from. Batches returned by {@link #process} should be given
+	 *          back to it once they have been written.
+	 * @param numThreads number of threads used for each batch
+	 */
+	public HDFPreprocessor(final int width, final int height,
+		final ImarisPixelType pixelType, final ResolutionLevel[] resLevels,
+		final BufferPool pool, final int numThreads)
+	{
 		resLevels_ = resLevels;
 		batchSize_ = resLevels_[resLevels_.length - 1].getReductionFactorZ();
-		width_ = width;
-		height_ = height;
-		histograms_ = new TreeMap<Integer, long[][]>();
+		pixelType_ = pixelType;
+		histograms_ = new TreeMap<Integer, Histogram>();
+		pool_ = pool;
+		batchPixels_ = new Object[batchSize_];
+		executor_ = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+		pyramidBuilder_ =
+			new PyramidBuilder(width, height, resLevels, pool, executor_,
+				numThreads);
+		tilePixels_ = new TreeMap<Integer, Long>();
+		histogramTasks_ = new ArrayList<HistogramTask>();
+		if (executor_ != null) {
+			final int numPixels = width * height;
+			for (int t = 0; t < numThreads; t++) {
+				histogramTasks_.add(new HistogramTask((int) ((long) t * numPixels /
+					numThreads), (int) ((long) (t + 1) * numPixels / numThreads)));
+			}
+		}
 	}
 
 	// slice index of first in batch
-	public PipelineImage process(final LinkedList<PipelineImage> slices) {
-
-		if (slices.getFirst().slice == 0) {
-			histograms_.put(slices.getFirst().channel,
-				new long[resLevels_.length][256]);
+	public PipelineImage process(final List<PipelineImage> slices) {
+		final PipelineImage first = slices.get(0);
+		if (first.slice == 0) {
+			histograms_.put(first.channel, new Histogram(pixelType_));
 		}
 
 		// Images is a list of slices with a size corresponding to the minumum
 		// number of slices
 		// needed to write one slice of the lowest resolution level
 		final int numSlicesInChunk = slices.size();
+		if (batchPixels_.length < numSlicesInChunk) {
+			batchPixels_ = new Object[numSlicesInChunk];
+		}
+		final Object[] pixels = batchPixels_;
+		int numRealSlices = 0;
+		for (int i = 0; i < numSlicesInChunk; i++) {
+			pixels[i] = slices.get(i).pixels;
+			if (pixels[i] != null && numRealSlices == i) {
+				numRealSlices++;
+			}
+		}
+
+		// Every image pixel falls inside a block at every resolution level, so
+		// all levels share the histogram of the full resolution slices
+		histogram(pixels, numRealSlices, first.byteOrder, histograms_
+			.get(first.channel));
 
-		// Calculate downsampled resolutions
-		// These are arrays of pixels used in downsampling, organized by resolution
-		// level index and slice index
-		final Object[][] downsampledPixSum =
-			new Object[resLevels_.length][numSlicesInChunk];
-		final Object[][] pixelsToWrite =
-			new Object[resLevels_.length][numSlicesInChunk];
-		// copy over pixels for highest resolution
+		final PipelineImage img = pool_.takeBatch();
+		pyramidBuilder_.build(pixels, numSlicesInChunk, (Object[][]) img.pixels,
+			first.byteOrder);
+		img.channel = first.channel;
+		img.byteOrder = first.byteOrder;
+		img.slice = first.slice;
+		img.frame = first.frame;
+		img.dateAndtime = first.dateAndtime;
 		for (int i = 0; i < numSlicesInChunk; i++) {
-			pixelsToWrite[0][i] = slices.get(i).pixels;
-			if (pixelsToWrite[0][i] == null) {
-				break;
-				// only occurs if incomplete set of slices gets sent to fill out a frame
-				// (dummy images)
+			pixels[i] = null;
+		}
+
+		// If this is the last slice in the frame, histograms are finished, so send
+		// them for writing
+		if (first.slice + batchSize_ >= resLevels_[0].getImageSizeZ()) {
+			img.histogram = histograms_.get(first.channel);
+			histograms_.put(first.channel, null);
+		}
+		return img;
+	}
+
+	/**
+	 * Adds a tile of a full resolution slice to the histograms of its channel.
+	 * The tiles of a time point must cover every slice of a channel exactly
+	 * once; the histogram is attached to the last one. Lower resolution
+	 * levels are built from tiles when they are written, see
+	 * {@link TileAccumulator}.
+	 */
+	public PipelineImage processTile(final PipelineImage tile) {
+		Histogram histogram = histograms_.get(tile.channel);
+		long channelPixels = 0;
+		if (histogram == null) {
+			histogram = new Histogram(pixelType_);
+			histograms_.put(tile.channel, histogram);
+		}
+		else {
+			channelPixels = tilePixels_.get(tile.channel);
+		}
+
+		tile_[0] = tile.pixels;
+		count(tile_, 1, 0, tile.width * tile.height, tile.byteOrder, histogram);
+		tile_[0] = null;
+
+		channelPixels += (long) tile.width * tile.height;
+		if (channelPixels == (long) resLevels_[0].getImageSizeX() *
+			resLevels_[0].getImageSizeY() * resLevels_[0].getImageSizeZ())
+		{
+			tile.histogram = histogram;
+			histograms_.put(tile.channel, null);
+			channelPixels = 0;
+		}
+		tilePixels_.put(tile.channel, channelPixels);
+		return tile;
+	}
+
+	/**
+	 * Shuts down the threads used in parallel mode.
+	 */
+	public void close() {
+		if (executor_ != null) {
+			executor_.shutdown();
+		}
+	}
+
+	// Adds all slices, except dummy slices, to a histogram. In parallel mode
+	// each task counts a range of pixels and the partial counts are added up
+	// in the order of the ranges, so 32 bit sums and bins are the same every
+	// run with the same number of threads
+	private void histogram(final Object[] pixels, final int numSlices,
+		final ByteOrder byteOrder, final Histogram histogram)
+	{
+		if (executor_ == null) {
+			count(pixels, numSlices, 0, resLevels_[0].getImageSizeX() *
+				resLevels_[0].getImageSizeY(), byteOrder, histogram);
+			return;
+		}
+
+		for (final HistogramTask task : histogramTasks_) {
+			task.pixels_ = pixels;
+			task.numSlices_ = numSlices;
+			task.byteOrder_ = byteOrder;
+		}
+		try {
+			for (final Future<Histogram> future : executor_.invokeAll(
+				histogramTasks_))
+			{
+				histogram.add(future.get());
 			}
-			if (bitDepth_ > 8) {
-				for (final short s : (short[]) slices.get(i).pixels) {
-					histograms_.get(slices.getFirst().channel)[0][(int) (255 * ((s & 0xffff) / Math
-						.pow(2, bitDepth_)))]++;
-				}
+		}
+		catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		catch (final ExecutionException ex) {
+			throw new IllegalStateException("Couldn't histogram batch", ex
+				.getCause());
+		}
+		for (final HistogramTask task : histogramTasks_) {
+			task.pixels_ = null;
+		}
+	}
+
+	// Counts the pixels of each value
+	private void count(final Object[] pixels, final int numSlices,
+		final int start, final int end, final ByteOrder byteOrder,
+		final Histogram histogram)
+	{
+		final long[] counts = histogram.getCounts();
+		for (int i = 0; i < numSlices; i++) {
+			if (pixels[i] instanceof float[]) {
+				histogram.add((float[]) pixels[i], start, end);
 			}
-			else {
-				for (final byte b : (byte[]) slices.get(i).pixels) {
-					histograms_.get(slices.getFirst().channel)[0][b & 0xff]++;
+			else if (pixels[i] instanceof int[]) {
+				histogram.add((int[]) pixels[i], start, end);
+			}
+			else if (pixels[i] instanceof short[]) {
+				final short[] shorts = (short[]) pixels[i];
+				for (int p = start; p < end; p++) {
+					counts[shorts[p] & 0xffff]++;
 				}
 			}
-		}
-		// calculate and add pixels for lower resolutions
-		for (int resLevel = 1; resLevel < resLevels_.length; resLevel++) {
-			for (int i = 0; i < numSlicesInChunk; i++) {
-				if (i % resLevels_[resLevel].getReductionFactorZ() == 0) {
-					// only create arrays when the slice index is a multiple of the
-					// resolution level's z downsample factor
-					// these arrays are used to sum up all appropriate pixels values and
-					// then average them into
-					// the new value at a lower resolution
-					downsampledPixSum[resLevel][i] =
-						new long[resLevels_[resLevel].getImageSizeX() *
-							resLevels_[resLevel].getImageSizeY()];
-					if (bitDepth_ > 8) {
-						pixelsToWrite[resLevel][i] =
-							new short[resLevels_[resLevel].getImageSizeX() *
-								resLevels_[resLevel].getImageSizeY()];
-					}
-					else {
-						pixelsToWrite[resLevel][i] =
-							new byte[resLevels_[resLevel].getImageSizeX() *
-								resLevels_[resLevel].getImageSizeY()];
-					}
+			else if (byteOrder != null) {
+				// 16 bit pixels stored as two bytes each
+				final byte[] bytes = (byte[]) pixels[i];
+				final int lo = byteOrder == ByteOrder.LITTLE_ENDIAN ? 0 : 1;
+				final int hi = 1 - lo;
+				for (int p = 2 * start; p < 2 * end; p += 2) {
+					counts[(bytes[p + lo] & 0xff) | (bytes[p + hi] & 0xff) << 8]++;
 				}
 			}
-		}
-
-		// This block sums up all pixel values from higher resolutions needed to
-		// create average values at lower
-		// resolutions and then averages them
-		final int res0Width = width_;
-		final int numPixelsPerSlice = res0Width * height_;
-		for (int sliceIndex = 0; sliceIndex < numSlicesInChunk; sliceIndex++) {
-			for (int i = 0; i < numPixelsPerSlice; i++) {
-				final int x = i % res0Width;
-				final int y = i / res0Width;
-				for (int resLevel = 1; resLevel < resLevels_.length; resLevel++) {
-					final int resLevelSizeX = resLevels_[resLevel].getImageSizeX();
-					final int resLevelSizeY = resLevels_[resLevel].getImageSizeY();
-					final int zDSFactor = resLevels_[resLevel].getReductionFactorZ();
-					final int xDSFactor = resLevels_[resLevel].getReductionFactorX();
-					final int yDSFactor = resLevels_[resLevel].getReductionFactorY();
-					// dsX and dsY are the x and y coordinates of the pixel in the
-					// downsampled image
-					final int dsX = x / xDSFactor;
-					final int dsY = y / yDSFactor;
-					if (dsX >= resLevelSizeX || dsY >= resLevelSizeY) {
-						// these pixels are cropped off at this resolution level, so skip
-						// them
-						continue;
-					}
-
-					// downsampled slice index is
-					final int downsampledSliceIndex =
-						sliceIndex - (sliceIndex % zDSFactor);
-					int val;
-					if (slices.get(sliceIndex).pixels == null) {
-						val = 0;
-						// this should only occur in the situation in which the a blank
-						// slice has to be passed
-						// to fill out the end of stack that has been downsampled in z. Use
-						// the first slice in the
-						// slice group (which must exist) to calculate the summed value.
-						// This way, the bottom slice
-						// in lower resolutions is not half as bright as others
-						if (bitDepth_ > 8) {
-							val = (((short[]) slices.get(0).pixels)[i] & 0xffff);
-						}
-						else {
-							val = (((byte[]) slices.get(0).pixels)[i] & 0xff);
-						}
-					}
-					else if (bitDepth_ > 8) {
-						if (slices.get(sliceIndex) == null) {
-							System.out.println("null slice index");
-						}
-						else if (slices.get(sliceIndex) == null) {
-							System.out.println("null pix");
-						}
-						val = (((short[]) slices.get(sliceIndex).pixels)[i] & 0xffff);
-						histograms_.get(slices.getFirst().channel)[resLevel][(int) (255 * (val / Math
-							.pow(2, bitDepth_)))]++;
-					}
-					else {
-						val = (((byte[]) slices.get(sliceIndex).pixels)[i] & 0xff);
-						// add pixel value to histogram
-						histograms_.get(slices.getFirst().channel)[resLevel][val]++;
-					}
-					((long[]) downsampledPixSum[resLevel][downsampledSliceIndex])[dsY *
-						resLevelSizeX + dsX] += val;
-
-					if (x % xDSFactor == xDSFactor - 1 &&
-						y % yDSFactor == yDSFactor - 1 &&
-						sliceIndex % zDSFactor == zDSFactor - 1)
-					{
-						// all pixels for reslevel have been filled
-						final int pixelIndex =
-							(x / xDSFactor) + (y / yDSFactor) * resLevelSizeX;
-						// calculate average pixel value
-						if (bitDepth_ > 8) {
-							((short[]) pixelsToWrite[resLevel][downsampledSliceIndex])[pixelIndex] =
-								(short) (((long[]) downsampledPixSum[resLevel][downsampledSliceIndex])[pixelIndex] / (xDSFactor *
-									yDSFactor * zDSFactor));
-						}
-						else {
-							((byte[]) pixelsToWrite[resLevel][downsampledSliceIndex])[pixelIndex] =
-								(byte) (((long[]) downsampledPixSum[resLevel][downsampledSliceIndex])[pixelIndex] / (xDSFactor *
-									yDSFactor * zDSFactor));
-						}
-					}
+			else {
+				final byte[] bytes = (byte[]) pixels[i];
+				for (int p = start; p < end; p++) {
+					counts[bytes[p] & 0xff]++;
 				}
 			}
 		}
+	}
 
-		final PipelineImage img =
-			new PipelineImage(pixelsToWrite, slices.getFirst().channel, slices
-				.getFirst().slice, slices.getFirst().frame,
-				slices.getFirst().dateAndtime);
+	// Counts one range of pixels of a batch in parallel mode
+	private class HistogramTask implements Callable<Histogram> {
 
-		// If this is the last slice in the frame, histograms are finished, so send
-		// them for writing
-		if (slices.getFirst().slice + batchSize_ >= resLevels_[0].getImageSizeZ()) {
-			img.histograms = histograms_.get(slices.getFirst().channel);
-			histograms_.put(slices.getFirst().channel, null);
+		private final int start_, end_;
+		private final Histogram histogram_ = new Histogram(pixelType_);
+		private Object[] pixels_;
+		private int numSlices_;
+		private ByteOrder byteOrder_;
+
+		public HistogramTask(final int start, final int end) {
+			start_ = start;
+			end_ = end;
+		}
+
+		@Override
+		public Histogram call() {
+			histogram_.clear();
+			count(pixels_, numSlices_, start_, end_, byteOrder_, histogram_);
+			return histogram_;
 		}
-		return img;
 	}
 }
@@ -72,6 +72,27 @@ public class HDFUtils {
 		final String name, final long[] size, final long l, final long[] chunk)
 		throws HDF5LibraryException, HDF5Exception
 	{
+		return createCompressedDataSet(id, name, size, l, chunk,
+			ImarisCompression.DEFAULT);
+	}
+
+	public static long[] createCompressedDataSet(final long id,
+		final String name, final long[] size, final long l, final long[] chunk,
+		final ImarisCompression compression) throws HDF5LibraryException,
+		HDF5Exception
+	{
+		return createCompressedDataSet(id, name, size, l, chunk, compression, 0,
+			0);
+	}
+
+	// Return dataspace, datatype, dataset and creation property list IDs. If
+	// cacheBytes is positive, the dataset gets its own chunk cache of that size
+	// with the given number of hash slots instead of the file default
+	public static long[] createCompressedDataSet(final long id,
+		final String name, final long[] size, final long l, final long[] chunk,
+		final ImarisCompression compression, final long cacheBytes,
+		final long cacheSlots) throws HDF5LibraryException, HDF5Exception
+	{
 
 		// 1) Create and initialize a dataspace for the dataset
 		// number of dimensions, array with size of each dimension, array with max
@@ -85,17 +106,53 @@ public class HDFUtils {
 
 		// Optionally create property list specifiying compression
 		final long propListID = H5.H5Pcreate(HDF5Constants.H5P_DATASET_CREATE);
-		H5.H5Pset_deflate(propListID, 2);
+		if (compression.isShuffled()) {
+			// filters run in the order they are added
+			H5.H5Pset_shuffle(propListID);
+		}
+		H5.H5Pset_deflate(propListID, compression.getLevel());
 		H5.H5Pset_chunk(propListID, chunk.length, chunk);
 
+		// Chunks are written whole, so they can be evicted as soon as they are
+		// full
+		long accessListID = HDF5Constants.H5P_DEFAULT;
+		if (cacheBytes > 0) {
+			accessListID = H5.H5Pcreate(HDF5Constants.H5P_DATASET_ACCESS);
+			H5.H5Pset_chunk_cache(accessListID, cacheSlots, cacheBytes, 1.0);
+		}
+
 		// 3) Create and initialize the dataset
 		final long dataSetID =
 			H5.H5Dcreate(id, name, dataTypeID, dataSpaceID,
-				HDF5Constants.H5P_DEFAULT, propListID, HDF5Constants.H5P_DEFAULT);
+				HDF5Constants.H5P_DEFAULT, propListID, accessListID);
+		if (cacheBytes > 0) {
+			H5.H5Pclose(accessListID);
+		}
 
 		return new long[] { dataSpaceID, dataTypeID, dataSetID, propListID };
 	}
 
+	/**
+	 * Returns the number of hash slots HDF5 recommends for a chunk cache holding
+	 * the given number of chunks: a prime about 100 times as large.
+	 */
+	public static long chunkCacheSlots(final int numChunks) {
+		long slots = Math.max(101, 100L * numChunks + 1);
+		while (!isPrime(slots)) {
+			slots += 2;
+		}
+		return slots;
+	}
+
+	private static boolean isPrime(final long n) {
+		for (long d = 3; d * d <= n; d += 2) {
+			if (n % d == 0) {
+				return false;
+			}
+		}
+		return n % 2 != 0;
+	}
+
 	public static void writeStringAttribute(final long id,
 		final String name, final String value) throws HDF5LibraryException,
 		HDF5Exception
@@ -117,4 +174,32 @@ public class HDFUtils {
 		H5.H5Aclose(attID);
 	}
 
+	/**
+	 * Reads an attribute written by {@link #writeStringAttribute}, or returns
+	 * null if the object has no such attribute.
+	 */
+	public static String readStringAttribute(final long id, final String name)
+		throws HDF5LibraryException, HDF5Exception
+	{
+		if (!H5.H5Aexists(id, name)) {
+			return null;
+		}
+		final long attID = H5.H5Aopen(id, name, HDF5Constants.H5P_DEFAULT);
+		try {
+			final long dataspaceID = H5.H5Aget_space(attID);
+			final long[] dims = new long[1];
+			H5.H5Sget_simple_extent_dims(dataspaceID, dims, null);
+			H5.H5Sclose(dataspaceID);
+			final byte[] value = new byte[(int) dims[0]];
+			H5.H5Aread(attID, HDF5Constants.H5T_C_S1, value);
+			return new String(value, "US-ASCII").trim();
+		}
+		catch (final UnsupportedEncodingException ex) {
+			throw new HDF5Exception("Can't decode attribute " + name);
+		}
+		finally {
+			H5.H5Aclose(attID);
+		}
+	}
+
 }
@@ -30,7 +30,10 @@
 package io.scif.formats.imaris;
 
 import java.awt.Color;
+import java.io.File;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.swing.JOptionPane;
 
@@ -45,9 +48,14 @@ public class HDFWriter {
 		new Color(75, 0, 130), Color.blue, Color.green, Color.yellow, Color.red,
 		Color.pink, Color.orange, Color.magenta };
 	private static final String VERSION = "7.6";
+	private final ImarisPixelType pixelType_;
 	private final int bitDepth_;
 	private String acqDate_ = "2012-11-08 16:14:17.000";
+	// numFrames_ is 0 or less when streaming an unknown number of time points
 	private final int numChannels_, numFrames_;
+	private int numTimePointsStarted_ = 0;
+	// time points already complete in a file being appended to
+	private int firstFrame_ = 0;
 	private final int imageWidth_, imageHeight_, numSlices_;
 	private final double pixelSize_, pixelSizeZ_;
 	private long fileID_;
@@ -58,10 +66,23 @@ public class HDFWriter {
 	private final String path_;
 	private TimePoint currentTimePoint_;
 	private int timePointImageCount_ = 0;
-	private final boolean compressImageData_;
+	private long timePointPixelCount_ = 0;
+	private final ImarisCompression compression_;
 	private final int slicesPerWrite_;
 	private Color[] channelColors_;
 	private boolean initialized_ = false;
+	private final boolean fullHistogram_;
+	private final boolean stackSlices_;
+	private final long chunkCacheBytes_;
+	// range of values in each channel over all time points written, used for
+	// the display range. NaN until a channel has values
+	private final double[] channelMin_, channelMax_;
+	// projection of the first time point written
+	private final Thumbnail thumbnail_;
+	private final int flushInterval_;
+	private int timePointsSinceFlush_ = 0;
+	private final ImarisWriterMetrics metrics_;
+	private final ImarisWriterMetrics.Listener metricsListener_;
 
 	public HDFWriter(final String path, final int numChannels,
 		final int numFrames, final int numSlices, final int bitDepth,
@@ -69,9 +90,30 @@ public class HDFWriter {
 		final Color[] channelColors, final int width, final int height,
 		final ResolutionLevel[] resLevels)
 	{
-		compressImageData_ = true;
+		this(path, numChannels, numFrames, numSlices, ImarisPixelType
+			.fromBitDepth(bitDepth), bitDepth, pixelSize, pixelSizeZ, channelColors,
+			width, height, resLevels, new ImarisWriterOptions());
+	}
+
+	public HDFWriter(final String path, final int numChannels,
+		final int numFrames, final int numSlices,
+		final ImarisPixelType pixelType, final int bitDepth,
+		final double pixelSize, final double pixelSizeZ,
+		final Color[] channelColors, final int width, final int height,
+		final ResolutionLevel[] resLevels, final ImarisWriterOptions options)
+	{
+		metrics_ = new ImarisWriterMetrics(resLevels.length, (long) width * height);
+		metricsListener_ = options.getMetricsListener();
+		compression_ = options.getCompression();
+		fullHistogram_ = options.isFullHistogram();
+		stackSlices_ = options.isStackSlices();
+		chunkCacheBytes_ = (long) options.getChunkCache() * 1048576;
+		flushInterval_ = options.getFlushInterval();
 		path_ = path;
 		numChannels_ = numChannels;
+		channelMin_ = new double[numChannels];
+		channelMax_ = new double[numChannels];
+		Arrays.fill(channelMin_, Double.NaN);
 		numFrames_ = numFrames;
 		numSlices_ = numSlices;
 		pixelSize_ = pixelSize;
@@ -82,12 +124,30 @@ public class HDFWriter {
 		else {
 			channelColors_ = channelColors;
 		}
+		pixelType_ = pixelType;
 		bitDepth_ = bitDepth;
 
 		imageWidth_ = width;
 		imageHeight_ = height;
 		resLevels_ = resLevels;
 		slicesPerWrite_ = resLevels_[resLevels_.length - 1].getReductionFactorZ();
+		thumbnail_ = new Thumbnail(resLevels_[resLevels_.length - 1], numChannels);
+		if (options.isAppend() && new File(path).exists()) {
+			openFile();
+		}
+	}
+
+	/**
+	 * Gets the first time point that has to be written. When appending, the
+	 * time points before it were already complete in the file.
+	 */
+	public int getFirstFrame() {
+		return firstFrame_;
+	}
+
+	/** Gets the metrics that the stages of writing add to. */
+	public ImarisWriterMetrics getMetrics() {
+		return metrics_;
 	}
 
 	public void close() {
@@ -96,6 +156,11 @@ public class HDFWriter {
 			if (currentTimePoint_ != null) {
 				currentTimePoint_.closeTimePoint();
 			}
+			writeColorRanges();
+			writeThumbnail();
+			if (numFrames_ <= 0) {
+				writeNumTimePoints(numTimePointsStarted_);
+			}
 
 			H5.H5Gclose(timeInfoID_);
 			for (final long id : resLevelIDs_) {
@@ -120,14 +185,11 @@ public class HDFWriter {
 		}
 		// if new timepoint
 		if (timePointImageCount_ == 0) {
-			currentTimePoint_ =
-				new TimePoint(resLevels_, resLevelIDs_, numChannels_, img.frame,
-					bitDepth_, compressImageData_);
-			HDFUtils.writeStringAttribute(timeInfoID_, "TimePoint" + (1 + img.frame),
-				img.dateAndtime);
+			startTimePoint(img);
 		}
 
 		currentTimePoint_.writePixels(img);
+		addToRange(img);
 
 		if (numSlices_ % slicesPerWrite_ != 0 &&
 			img.slice + slicesPerWrite_ - 1 >= numSlices_)
@@ -141,14 +203,164 @@ public class HDFWriter {
 
 		// close channels if full
 		if (timePointImageCount_ == numChannels_ * numSlices_) {
-			if (img.histograms == null) {
+			if (img.histogram == null) {
 				JOptionPane.showMessageDialog(null, "histogram not created correctly");
-				img.histograms = new long[resLevels_.length][256];
+				img.histogram = new Histogram(pixelType_);
 			}
-			currentTimePoint_.closeTimePoint();
-			currentTimePoint_ = null;
+			closeTimePoint();
 			timePointImageCount_ = 0;
+			completeTimePoint(img.frame);
+		}
+	}
+
+	// Writes one tile of a full resolution slice. The tiles of a time point
+	// must cover every slice in every channel exactly once
+	public void writeTile(final PipelineImage tile) throws Exception {
+		if (!initialized_) {
+			acqDate_ = tile.dateAndtime;
+			createFile();
+			initialized_ = true;
+		}
+		if (timePointPixelCount_ == 0) {
+			startTimePoint(tile);
+		}
+
+		currentTimePoint_.writeTile(tile);
+		addToRange(tile);
+		timePointPixelCount_ += (long) tile.width * tile.height;
+
+		if (timePointPixelCount_ == (long) numChannels_ * numSlices_ *
+			imageWidth_ * imageHeight_)
+		{
+			closeTimePoint();
+			timePointPixelCount_ = 0;
+			completeTimePoint(tile.frame);
+		}
+	}
+
+	private void startTimePoint(final PipelineImage img)
+		throws HDF5LibraryException, HDF5Exception
+	{
+		final long start = System.nanoTime();
+		final Object event =
+			ImarisEvents.begin(ImarisEvents.Type.CREATE_TIME_POINT);
+		currentTimePoint_ =
+			new TimePoint(resLevels_, resLevelIDs_, numChannels_, img.frame,
+				pixelType_, bitDepth_, compression_, fullHistogram_, stackSlices_,
+				chunkCacheBytes_, img.height, img.frame == 0 ? thumbnail_ : null,
+				metrics_);
+		ImarisEvents.commit(event, -1, -1, img.frame, -1, 0);
+		metrics_.record(ImarisWriterMetrics.Stage.CREATE_TIME_POINT, start);
+		replaceStringAttribute(timeInfoID_, "TimePoint" + (1 + img.frame),
+			img.dateAndtime);
+		numTimePointsStarted_ = Math.max(numTimePointsStarted_, img.frame + 1);
+	}
+
+	// The time point is closed once, even if closing it throws
+	private void closeTimePoint() throws HDF5LibraryException, HDF5Exception {
+		final long start = System.nanoTime();
+		final Object event = ImarisEvents.begin(ImarisEvents.Type.CLOSE_TIME_POINT);
+		final TimePoint timePoint = currentTimePoint_;
+		currentTimePoint_ = null;
+		timePoint.closeTimePoint();
+		ImarisEvents.commit(event, -1, -1, timePoint.getFrameIndex(), -1, 0);
+		metrics_.record(ImarisWriterMetrics.Stage.CLOSE_TIME_POINT, start);
+	}
+
+	// Flushes every few complete time points, if a flush interval was set.
+	// Flushed time points survive a crash, see ImarisWriterOptions.setAppend.
+	// Time points are completed in order
+	private void completeTimePoint(final int frame)
+		throws HDF5LibraryException, HDF5Exception
+	{
+		if (metricsListener_ != null) {
+			metricsListener_.timePointWritten(frame, metrics_.snapshot());
 		}
+		if (flushInterval_ == 0 || ++timePointsSinceFlush_ < flushInterval_) {
+			return;
+		}
+		timePointsSinceFlush_ = 0;
+		H5.H5Fflush(fileID_, HDF5Constants.H5F_SCOPE_LOCAL);
+	}
+
+	private void addToRange(final PipelineImage img) {
+		if (img.histogram == null || img.histogram.getCount() == 0) {
+			return;
+		}
+		final int c = img.channel;
+		if (Double.isNaN(channelMin_[c])) {
+			channelMin_[c] = img.histogram.getMin();
+			channelMax_[c] = img.histogram.getMax();
+		}
+		else {
+			channelMin_[c] = Math.min(channelMin_[c], img.histogram.getMin());
+			channelMax_[c] = Math.max(channelMax_[c], img.histogram.getMax());
+		}
+	}
+
+	// Replaces the full bit depth display range of each channel with the range
+	// of its values
+	private void writeColorRanges() throws HDF5LibraryException, HDF5Exception {
+		for (int c = 0; c < numChannels_; c++) {
+			if (Double.isNaN(channelMin_[c])) {
+				continue;
+			}
+			final long channelID =
+				H5.H5Gopen(fileID_, "/DataSetInfo/Channel " + c,
+					HDF5Constants.H5P_DEFAULT);
+			H5.H5Adelete(channelID, "ColorRange");
+			HDFUtils.writeStringAttribute(channelID, "ColorRange",
+				format(channelMin_[c]) + " " + format(channelMax_[c]));
+			H5.H5Gclose(channelID);
+		}
+	}
+
+	// When streaming, this is only known once the writer is closed
+	private void writeNumTimePoints(final int numTimePoints)
+		throws HDF5LibraryException, HDF5Exception
+	{
+		replaceStringAttribute(timeInfoID_, "DatasetTimePoints", numTimePoints +
+			"");
+		replaceStringAttribute(timeInfoID_, "FileTimePoints", numTimePoints + "");
+	}
+
+	// The thumbnail is shown with the same display range as the channels. When
+	// appending, the first time point may have been written before
+	private void writeThumbnail() throws HDF5LibraryException, HDF5Exception {
+		if (thumbnail_.isEmpty()) {
+			return;
+		}
+		if (H5.H5Lexists(fileID_, "/Thumbnail", HDF5Constants.H5P_DEFAULT)) {
+			H5.H5Ldelete(fileID_, "/Thumbnail", HDF5Constants.H5P_DEFAULT);
+		}
+		final double[] min = new double[numChannels_];
+		final double[] max = new double[numChannels_];
+		for (int c = 0; c < numChannels_; c++) {
+			if (Double.isNaN(channelMin_[c])) {
+				max[c] = pixelType_.getDefaultMax(bitDepth_);
+			}
+			else {
+				min[c] = channelMin_[c];
+				max[c] = channelMax_[c];
+			}
+		}
+		thumbnail_.write(fileID_, channelColors_, min, max);
+	}
+
+	// Attributes of a file being appended to may already exist
+	private void replaceStringAttribute(final long id, final String name,
+		final String value) throws HDF5LibraryException, HDF5Exception
+	{
+		if (H5.H5Aexists(id, name)) {
+			H5.H5Adelete(id, name);
+		}
+		HDFUtils.writeStringAttribute(id, name, value);
+	}
+
+	// Integer values are written without decimals
+	private String format(final double value) {
+		return pixelType_.isFloatingPoint() ? Float.toString((float) value)
+			: Long.toString((long) value);
 	}
 
 	private void createFile() {
@@ -166,13 +378,232 @@ public class HDFWriter {
 		}
 	}
 
+	// Reopens a file to append to. Time points are complete if the histograms
+	// of all their channels were written, which happens after their image
+	// data. Incomplete ones are removed to be written again
+	private void openFile() {
+		fileID_ =
+			H5.H5Fopen(path_, HDF5Constants.H5F_ACC_RDWR, HDF5Constants.H5P_DEFAULT);
+		checkLayout();
+		resLevelIDs_ = new long[resLevels_.length];
+		for (int level = 0; level < resLevels_.length; level++) {
+			resLevelIDs_[level] =
+				H5.H5Gopen(fileID_, "/DataSet/ResolutionLevel " + level,
+					HDF5Constants.H5P_DEFAULT);
+		}
+		timeInfoID_ =
+			H5.H5Gopen(fileID_, "/DataSetInfo/TimeInfo", HDF5Constants.H5P_DEFAULT);
+		while (isComplete(firstFrame_)) {
+			readHistogramRanges(firstFrame_);
+			firstFrame_++;
+		}
+		for (int frame = firstFrame_;; frame++) {
+			boolean found = false;
+			for (final long id : resLevelIDs_) {
+				if (H5.H5Lexists(id, "TimePoint " + frame, HDF5Constants.H5P_DEFAULT))
+				{
+					H5.H5Ldelete(id, "TimePoint " + frame, HDF5Constants.H5P_DEFAULT);
+					found = true;
+				}
+			}
+			if (!found) {
+				break;
+			}
+		}
+		numTimePointsStarted_ = firstFrame_;
+		initialized_ = true;
+	}
+
+	// Appending only works to a file with the same layout
+	private void checkLayout() throws HDF5LibraryException, HDF5Exception {
+		final long imageID =
+			H5.H5Gopen(fileID_, "/DataSetInfo/Image", HDF5Constants.H5P_DEFAULT);
+		final boolean sameSize =
+			(imageWidth_ + "").equals(HDFUtils.readStringAttribute(imageID, "X")) &&
+				(imageHeight_ + "").equals(HDFUtils
+					.readStringAttribute(imageID, "Y")) &&
+				(numSlices_ + "").equals(HDFUtils.readStringAttribute(imageID, "Z"));
+		H5.H5Gclose(imageID);
+		if (!sameSize ||
+			!H5.H5Lexists(fileID_, "/DataSet/ResolutionLevel " +
+				(resLevels_.length - 1), HDF5Constants.H5P_DEFAULT) ||
+			H5.H5Lexists(fileID_, "/DataSet/ResolutionLevel " + resLevels_.length,
+				HDF5Constants.H5P_DEFAULT) ||
+			!H5.H5Lexists(fileID_, "/DataSetInfo/Channel " + (numChannels_ - 1),
+				HDF5Constants.H5P_DEFAULT) ||
+			H5.H5Lexists(fileID_, "/DataSetInfo/Channel " + numChannels_,
+				HDF5Constants.H5P_DEFAULT))
+		{
+			H5.H5Fclose(fileID_);
+			throw new IllegalArgumentException("Can't append to " + path_ +
+				": it has a different image size, resolution levels or channels");
+		}
+	}
+
+	private boolean isComplete(final int frame) throws HDF5LibraryException,
+		HDF5Exception
+	{
+		for (final long id : resLevelIDs_) {
+			if (!H5.H5Lexists(id, "TimePoint " + frame, HDF5Constants.H5P_DEFAULT)) {
+				return false;
+			}
+			for (int c = 0; c < numChannels_; c++) {
+				final String channel = "TimePoint " + frame + "/Channel " + c;
+				if (!H5.H5Lexists(id, channel, HDF5Constants.H5P_DEFAULT) ||
+					!H5.H5Lexists(id, channel + "/Histogram",
+						HDF5Constants.H5P_DEFAULT))
+				{
+					return false;
+				}
+				final long channelID =
+					H5.H5Gopen(id, channel, HDF5Constants.H5P_DEFAULT);
+				final long histogramID =
+					H5.H5Dopen(channelID, "Histogram", HDF5Constants.H5P_DEFAULT);
+				// a cancelled channel gets a range but no histogram
+				final boolean written =
+					H5.H5Aexists(channelID, "HistogramMax") &&
+						H5.H5Dget_storage_size(histogramID) > 0;
+				H5.H5Dclose(histogramID);
+				H5.H5Gclose(channelID);
+				if (!written) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a master file whose time points are external links to the time
+	 * points of shard files, see {@link ImarisShardPlan}. The shards must be
+	 * complete, and since they are linked by file name, stay in the directory
+	 * of the master file. Call {@link #close()} afterwards.
+	 */
+	public void linkShards(final List<ImarisShardPlan.Shard> shards)
+		throws HDF5LibraryException, HDF5Exception
+	{
+		final long firstID =
+			H5.H5Fopen(shards.get(0).getPath(), HDF5Constants.H5F_ACC_RDONLY,
+				HDF5Constants.H5P_DEFAULT);
+		final long imageID =
+			H5.H5Gopen(firstID, "/DataSetInfo/Image", HDF5Constants.H5P_DEFAULT);
+		acqDate_ = HDFUtils.readStringAttribute(imageID, "RecordingDate");
+		H5.H5Gclose(imageID);
+		H5.H5Fclose(firstID);
+		createFile();
+		initialized_ = true;
+
+		// channel shards are linked below a time point group of the master
+		final long linkListID = H5.H5Pcreate(HDF5Constants.H5P_LINK_CREATE);
+		H5.H5Pset_create_intermediate_group(linkListID, true);
+		try {
+			for (final ImarisShardPlan.Shard shard : shards) {
+				linkShard(shard, linkListID);
+			}
+		}
+		finally {
+			H5.H5Pclose(linkListID);
+		}
+		for (int frame = 0; frame < numFrames_; frame++) {
+			if (!isComplete(frame)) {
+				throw new IllegalStateException("Time point " + frame +
+					" is incomplete in the shards");
+			}
+			readHistogramRanges(frame);
+		}
+	}
+
+	private void linkShard(final ImarisShardPlan.Shard shard,
+		final long linkListID) throws HDF5LibraryException, HDF5Exception
+	{
+		final String fileName = new File(shard.getPath()).getName();
+		final boolean allChannels = shard.getNumChannels() == numChannels_;
+		final long shardID =
+			H5.H5Fopen(shard.getPath(), HDF5Constants.H5F_ACC_RDONLY,
+				HDF5Constants.H5P_DEFAULT);
+		try {
+			final long shardTimeInfoID =
+				H5.H5Gopen(shardID, "/DataSetInfo/TimeInfo",
+					HDF5Constants.H5P_DEFAULT);
+			for (int t = 0; t < shard.getNumFrames(); t++) {
+				final int frame = shard.getFirstFrame() + t;
+				final String date =
+					HDFUtils.readStringAttribute(shardTimeInfoID, "TimePoint" + (t + 1));
+				if (date != null) {
+					replaceStringAttribute(timeInfoID_, "TimePoint" + (frame + 1), date);
+				}
+				for (int level = 0; level < resLevelIDs_.length; level++) {
+					final String target =
+						"/DataSet/ResolutionLevel " + level + "/TimePoint " + t;
+					if (allChannels) {
+						H5.H5Lcreate_external(fileName, target, resLevelIDs_[level],
+							"TimePoint " + frame, linkListID, HDF5Constants.H5P_DEFAULT);
+						continue;
+					}
+					for (int c = 0; c < shard.getNumChannels(); c++) {
+						H5.H5Lcreate_external(fileName, target + "/Channel " + c,
+							resLevelIDs_[level], "TimePoint " + frame + "/Channel " +
+								(shard.getFirstChannel() + c), linkListID,
+							HDF5Constants.H5P_DEFAULT);
+					}
+				}
+			}
+			H5.H5Gclose(shardTimeInfoID);
+			// the shard with the first time point of all channels has the
+			// thumbnail
+			if (allChannels && shard.getFirstFrame() == 0 &&
+				H5.H5Lexists(shardID, "/Thumbnail", HDF5Constants.H5P_DEFAULT))
+			{
+				H5.H5Lcreate_external(fileName, "/Thumbnail", fileID_, "Thumbnail",
+					HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT);
+			}
+		}
+		finally {
+			H5.H5Fclose(shardID);
+		}
+	}
+
+	// Adds the values of a complete time point to the display ranges
+	private void readHistogramRanges(final int frame)
+		throws HDF5LibraryException, HDF5Exception
+	{
+		for (int c = 0; c < numChannels_; c++) {
+			final long channelID =
+				H5.H5Gopen(resLevelIDs_[0], "TimePoint " + frame + "/Channel " + c,
+					HDF5Constants.H5P_DEFAULT);
+			try {
+				final double min =
+					Double.parseDouble(HDFUtils.readStringAttribute(channelID,
+						"HistogramMin"));
+				final double max =
+					Double.parseDouble(HDFUtils.readStringAttribute(channelID,
+						"HistogramMax"));
+				if (Double.isNaN(channelMin_[c])) {
+					channelMin_[c] = min;
+					channelMax_[c] = max;
+				}
+				else {
+					channelMin_[c] = Math.min(channelMin_[c], min);
+					channelMax_[c] = Math.max(channelMax_[c], max);
+				}
+			}
+			catch (final NumberFormatException e) {
+				// leave the range to the data still to be written
+			}
+			finally {
+				H5.H5Gclose(channelID);
+			}
+		}
+	}
+
 	private void addRootAttributes() throws HDF5LibraryException, HDF5Exception {
 		HDFUtils.writeStringAttribute(fileID_, "DataSetDirectoryName", "DataSet");
 		HDFUtils.writeStringAttribute(fileID_, "DataSetInfoDirectoryName",
 			"DataSetInfo");
 		HDFUtils.writeStringAttribute(fileID_, "ImarisDataSet", "ImarisDataSet");
 		HDFUtils.writeStringAttribute(fileID_, "ImarisVersion", "5.5.0");
-//      HDFUtils.writeStringAttribute(fileID_, "ThumbnailDirectoryName", "Thumbnail");
+		HDFUtils.writeStringAttribute(fileID_, "ThumbnailDirectoryName",
+			"Thumbnail");
 		// Create number of datasets attribute
 		final long dataspaceID = H5.H5Screate_simple(1, new long[] { 1 }, null);
 		final long attID =
@@ -206,7 +637,7 @@ public class HDFWriter {
 			HDFUtils.writeStringAttribute(channelID, "ColorMode", "BaseColor");
 			HDFUtils.writeStringAttribute(channelID, "ColorOpacity", "1.000");
 			HDFUtils.writeStringAttribute(channelID, "ColorRange", "0 " +
-				((int) Math.pow(2, bitDepth_) - 1));
+				format(pixelType_.getDefaultMax(bitDepth_)));
 			HDFUtils.writeStringAttribute(channelID, "Description",
 				"(description not specified)");
 			HDFUtils.writeStringAttribute(channelID, "GammaCorrection", "1.000");
@@ -266,10 +697,9 @@ public class HDFWriter {
 		timeInfoID_ =
 			H5.H5Gcreate(dataSetGroupID, "TimeInfo", HDF5Constants.H5P_DEFAULT,
 				HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT);
-		HDFUtils.writeStringAttribute(timeInfoID_, "DatasetTimePoints", numFrames_ +
-			"");
-		HDFUtils.writeStringAttribute(timeInfoID_, "FileTimePoints", numFrames_ +
-			"");
+		if (numFrames_ > 0) {
+			writeNumTimePoints(numFrames_);
+		}
 		// close this at the end after all time points added
 
 		H5.H5Gclose(dataSetGroupID);
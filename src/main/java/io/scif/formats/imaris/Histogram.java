@@ -0,0 +1,306 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.util.Arrays;
+
+/**
+ * Number of pixels of every value in one channel of one time point, from
+ * which the statistics and the binned histograms written to the file are
+ * derived. Counting exact values keeps binning out of the per pixel work and
+ * makes the bins fit the range of values that actually occur.
+ * <p>
+ * 32 bit values can't be counted one by one, so they are counted in
+ * {@value #NUM_WIDE_BINS} bins whose width is a power of two. The bins start
+ * as narrow as the first values allow and are moved and merged whenever a
+ * value falls outside them, so the range never has to be known in advance.
+ * Their exact minimum, maximum and sum are kept alongside. Floating point
+ * values that are NaN or infinite are not counted.
+ * </p>
+ */
+public class Histogram {
+
+	// as many as there are 16 bit values, so they share the array size
+	private static final int NUM_WIDE_BINS = 65536;
+
+	private final long[] counts_;
+	private final boolean wide_, floatingPoint_;
+	// value at the start of the first bin and width of every bin, 0 until a
+	// 32 bit value has been counted. The start is a multiple of the width
+	private double origin_, binWidth_;
+	private double min_, max_, sum_;
+
+	/**
+	 * @param pixelType type of the values; 16 bit values are counted up to
+	 *          65535 whatever the bit depth, in case pixels exceed it
+	 */
+	public Histogram(final ImarisPixelType pixelType) {
+		wide_ = pixelType.getByteDepth() == 4;
+		floatingPoint_ = pixelType.isFloatingPoint();
+		counts_ =
+			new long[pixelType == ImarisPixelType.UINT8 ? 256 : NUM_WIDE_BINS];
+	}
+
+	/**
+	 * Gets the count of each value, or of each bin for 32 bit data. Counts of
+	 * 8 and 16 bit values may be added to the array directly.
+	 */
+	public long[] getCounts() {
+		return counts_;
+	}
+
+	public void add(final long[] counts) {
+		for (int v = 0; v < counts_.length; v++) {
+			counts_[v] += counts[v];
+		}
+	}
+
+	/**
+	 * Adds the counts of another histogram of the same pixel type.
+	 */
+	public void add(final Histogram histogram) {
+		if (!wide_) {
+			add(histogram.counts_);
+			return;
+		}
+		if (histogram.binWidth_ == 0) {
+			return;
+		}
+		cover(histogram.min_, histogram.max_, histogram.binWidth_);
+		// bins of the other histogram fall entirely within one of these bins
+		for (int i = 0; i < NUM_WIDE_BINS; i++) {
+			if (histogram.counts_[i] > 0) {
+				counts_[bin(histogram.origin_ + i * histogram.binWidth_)] +=
+					histogram.counts_[i];
+			}
+		}
+		sum_ += histogram.sum_;
+	}
+
+	/**
+	 * Counts unsigned 32 bit pixels {@code start} to {@code end - 1}.
+	 */
+	public void add(final int[] pixels, final int start, final int end) {
+		long lo = Long.MAX_VALUE, hi = -1;
+		double sum = 0;
+		for (int p = start; p < end; p++) {
+			final long v = pixels[p] & 0xffffffffL;
+			lo = Math.min(lo, v);
+			hi = Math.max(hi, v);
+			sum += v;
+		}
+		if (hi < 0) {
+			return;
+		}
+		cover(lo, hi, 1);
+		sum_ += sum;
+
+		// integer bins are a whole power of two wide
+		final long origin = (long) origin_;
+		final int shift = Math.getExponent(binWidth_);
+		for (int p = start; p < end; p++) {
+			counts_[(int) (((pixels[p] & 0xffffffffL) - origin) >> shift)]++;
+		}
+	}
+
+	/**
+	 * Counts floating point pixels {@code start} to {@code end - 1}.
+	 */
+	public void add(final float[] pixels, final int start, final int end) {
+		float lo = Float.POSITIVE_INFINITY, hi = Float.NEGATIVE_INFINITY;
+		double sum = 0;
+		for (int p = start; p < end; p++) {
+			final float v = pixels[p];
+			// false for NaN and infinite values
+			if (v - v == 0) {
+				lo = Math.min(lo, v);
+				hi = Math.max(hi, v);
+				sum += v;
+			}
+		}
+		if (lo > hi) {
+			return;
+		}
+		cover(lo, hi, 0);
+		sum_ += sum;
+
+		final double origin = origin_, scale = 1 / binWidth_;
+		for (int p = start; p < end; p++) {
+			final float v = pixels[p];
+			if (v - v == 0) {
+				counts_[Math.min(NUM_WIDE_BINS - 1, (int) ((v - origin) * scale))]++;
+			}
+		}
+	}
+
+	/**
+	 * Removes all counts, so the histogram can be reused.
+	 */
+	public void clear() {
+		Arrays.fill(counts_, 0);
+		origin_ = 0;
+		binWidth_ = 0;
+		sum_ = 0;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (final long c : counts_) {
+			count += c;
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the lowest value counted, or 0 if nothing was counted.
+	 */
+	public double getMin() {
+		if (wide_) {
+			return binWidth_ == 0 ? 0 : min_;
+		}
+		for (int v = 0; v < counts_.length; v++) {
+			if (counts_[v] > 0) {
+				return v;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the highest value counted, or 0 if nothing was counted.
+	 */
+	public double getMax() {
+		if (wide_) {
+			return binWidth_ == 0 ? 0 : max_;
+		}
+		for (int v = counts_.length - 1; v > 0; v--) {
+			if (counts_[v] > 0) {
+				return v;
+			}
+		}
+		return 0;
+	}
+
+	public double getMean() {
+		if (wide_) {
+			final long count = getCount();
+			return count == 0 ? 0 : sum_ / count;
+		}
+		long count = 0;
+		double sum = 0;
+		for (int v = 0; v < counts_.length; v++) {
+			count += counts_[v];
+			sum += (double) v * counts_[v];
+		}
+		return count == 0 ? 0 : sum / count;
+	}
+
+	/**
+	 * Gets the counts in bins of equal width from {@link #getMin()} to
+	 * {@link #getMax()}, as Imaris expects them. 32 bit values are assigned
+	 * by the start of the bin they were counted in.
+	 */
+	public long[] getBins(final int numBins) {
+		final long[] bins = new long[numBins];
+		if (wide_) {
+			final double range = max_ - min_;
+			for (int i = 0; i < NUM_WIDE_BINS; i++) {
+				if (counts_[i] > 0) {
+					final double v = Math.max(min_, origin_ + i * binWidth_);
+					final int bin =
+						range > 0 ? (int) ((v - min_) / range * numBins) : 0;
+					bins[Math.max(0, Math.min(numBins - 1, bin))] += counts_[i];
+				}
+			}
+			return bins;
+		}
+		final int min = (int) getMin();
+		final long range = (int) getMax() - min + 1;
+		for (int v = min; v < min + range; v++) {
+			bins[(int) ((v - min) * numBins / range)] += counts_[v];
+		}
+		return bins;
+	}
+
+	// Moves and widens the bins as little as needed to count values lo to hi
+	// in bins at least minWidth wide
+	private void cover(final double lo, final double hi, final double minWidth)
+	{
+		if (binWidth_ == 0) {
+			// the narrowest power of two that spreads the values over the bins,
+			// but no narrower than the values can be told apart
+			final double width =
+				Math.max(minWidth, Math.max((hi - lo) / NUM_WIDE_BINS,
+					floatingPoint_ ? Math.ulp((float) Math.max(Math.abs(lo), Math
+						.abs(hi))) : 1));
+			binWidth_ = Math.scalb(1.0, Math.getExponent(width));
+			if (binWidth_ < width) {
+				binWidth_ *= 2;
+			}
+			origin_ = Math.floor(lo / binWidth_) * binWidth_;
+			min_ = lo;
+			max_ = hi;
+		}
+		final double low = Math.min(lo, min_), high = Math.max(hi, max_);
+		min_ = low;
+		max_ = high;
+		if (binWidth_ >= minWidth && low >= origin_ &&
+			high < origin_ + NUM_WIDE_BINS * binWidth_)
+		{
+			return;
+		}
+
+		double width = Math.max(binWidth_, minWidth), origin;
+		while (true) {
+			origin = Math.floor(low / width) * width;
+			if (high < origin + NUM_WIDE_BINS * width) {
+				break;
+			}
+			width *= 2;
+		}
+		// the new width is a multiple of the old one and both starts are
+		// multiples of their width, so each old bin falls within one new bin
+		final long[] counts = counts_.clone();
+		final double oldOrigin = origin_, oldWidth = binWidth_;
+		Arrays.fill(counts_, 0);
+		origin_ = origin;
+		binWidth_ = width;
+		for (int i = 0; i < NUM_WIDE_BINS; i++) {
+			if (counts[i] > 0) {
+				counts_[bin(oldOrigin + i * oldWidth)] += counts[i];
+			}
+		}
+	}
+
+	private int bin(final double value) {
+		return Math.max(0, Math.min(NUM_WIDE_BINS - 1, (int) ((value - origin_) /
+			binWidth_)));
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+/**
+ * Compression choices for image data in Imaris files. Every choice uses
+ * standard HDF5 filters, so files remain readable by Imaris. The shuffle
+ * filter regroups the bytes of multi-byte pixels before deflating, which
+ * compresses 16 bit data considerably better; it has no effect on 8 bit data.
+ */
+public enum ImarisCompression {
+
+	NONE("Uncompressed", 0, false),
+	DEFLATE_1("Deflate 1", 1, false),
+	DEFLATE_2("Deflate 2", 2, false),
+	DEFLATE_3("Deflate 3", 3, false),
+	DEFLATE_4("Deflate 4", 4, false),
+	DEFLATE_5("Deflate 5", 5, false),
+	DEFLATE_6("Deflate 6", 6, false),
+	DEFLATE_7("Deflate 7", 7, false),
+	DEFLATE_8("Deflate 8", 8, false),
+	DEFLATE_9("Deflate 9", 9, false),
+	SHUFFLE_DEFLATE_1("Shuffle + Deflate 1", 1, true),
+	SHUFFLE_DEFLATE_2("Shuffle + Deflate 2", 2, true),
+	SHUFFLE_DEFLATE_3("Shuffle + Deflate 3", 3, true),
+	SHUFFLE_DEFLATE_4("Shuffle + Deflate 4", 4, true),
+	SHUFFLE_DEFLATE_5("Shuffle + Deflate 5", 5, true),
+	SHUFFLE_DEFLATE_6("Shuffle + Deflate 6", 6, true),
+	SHUFFLE_DEFLATE_7("Shuffle + Deflate 7", 7, true),
+	SHUFFLE_DEFLATE_8("Shuffle + Deflate 8", 8, true),
+	SHUFFLE_DEFLATE_9("Shuffle + Deflate 9", 9, true);
+
+	/** The compression used when none is chosen. */
+	public static final ImarisCompression DEFAULT = DEFLATE_2;
+
+	private final String name_;
+	private final int level_;
+	private final boolean shuffle_;
+
+	private ImarisCompression(final String name, final int level,
+		final boolean shuffle)
+	{
+		name_ = name;
+		level_ = level;
+		shuffle_ = shuffle;
+	}
+
+	/**
+	 * Gets the name of this choice, as used with
+	 * {@code SCIFIOConfig#writerSetCompression}.
+	 */
+	public String getName() {
+		return name_;
+	}
+
+	/** Returns true if image data is compressed at all. */
+	public boolean isCompressed() {
+		return level_ > 0;
+	}
+
+	/** Gets the deflate level from 1 to 9, or 0 if uncompressed. */
+	public int getLevel() {
+		return level_;
+	}
+
+	/** Returns true if the shuffle filter is applied before deflating. */
+	public boolean isShuffled() {
+		return shuffle_;
+	}
+
+	/** Gets the names of all choices, in the order of {@link #values()}. */
+	public static String[] getNames() {
+		final ImarisCompression[] values = values();
+		final String[] names = new String[values.length];
+		for (int i = 0; i < values.length; i++) {
+			names[i] = values[i].name_;
+		}
+		return names;
+	}
+
+	/**
+	 * Gets the choice with the given name, ignoring case.
+	 *
+	 * @throws IllegalArgumentException if there is no such choice
+	 */
+	public static ImarisCompression fromName(final String name) {
+		for (final ImarisCompression compression : values()) {
+			if (compression.name_.equalsIgnoreCase(name.trim())) {
+				return compression;
+			}
+		}
+		throw new IllegalArgumentException("Unknown Imaris compression: " + name);
+	}
+
+	@Override
+	public String toString() {
+		return name_;
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Emits JDK Flight Recorder events for the stages of writing, so that stalls
+ * seen in a recording can be lined up with garbage collection and I/O. The
+ * project is built for Java 8, so the event types are defined at run time
+ * with jdk.jfr.EventFactory, found by reflection, and nothing is emitted on
+ * JVMs without Flight Recorder. A listener tracks whether a recording is
+ * running; while none is, an event costs one volatile read.
+ * <p>
+ * Every event carries the channel, slice, frame and resolution level it
+ * concerns, or -1 where one doesn't apply, and the number of bytes handled.
+ * </p>
+ */
+public final class ImarisEvents {
+
+	/** Stages of writing that emit events. */
+	public enum Type {
+
+		/** A caller of addImage or addTile waiting for room in the queue */
+		ADD_WAIT("AddWait", "Imaris Add Wait"),
+		/** Downsampling and histogramming a batch of slices or a tile */
+		PREPROCESS("Preprocess", "Imaris Preprocess"),
+		/** Creating the groups and datasets of a time point */
+		CREATE_TIME_POINT("CreateTimePoint", "Imaris Create Time Point"),
+		/** Writing the remaining data and the histograms of a time point */
+		CLOSE_TIME_POINT("CloseTimePoint", "Imaris Close Time Point"),
+		/** Writing or buffering one slice of one resolution level */
+		WRITE_SLICE("WriteSlice", "Imaris Write Slice"),
+		/** Writing the histograms of one channel at one resolution level */
+		WRITE_HISTOGRAM("WriteHistogram", "Imaris Write Histogram");
+
+		private final String name_, label_;
+
+		private Type(final String name, final String label) {
+			name_ = name;
+			label_ = label;
+		}
+	}
+
+	private static final String[] FIELDS = new String[] { "channel", "slice",
+		"frame", "resolutionLevel", "bytes" };
+	// event factories by type, or null without Flight Recorder
+	private static final Object[] FACTORIES;
+	private static final Method NEW_EVENT, BEGIN, END, SET, COMMIT;
+	// recordings that are running
+	private static final Set<Object> RUNNING = new HashSet<Object>();
+	private static volatile boolean recording_ = false;
+
+	static {
+		Object[] factories = null;
+		Method newEvent = null, begin = null, end = null, set = null, commit =
+			null;
+		try {
+			final Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			final Constructor<?> newAnnotation =
+				Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class,
+					Object.class);
+			final Constructor<?> newField =
+				Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class,
+					String.class);
+			final List<Object> fields = new ArrayList<Object>();
+			for (int f = 0; f < FIELDS.length; f++) {
+				fields.add(newField.newInstance(f == FIELDS.length - 1 ? long.class
+					: int.class, FIELDS[f]));
+			}
+			final Method create =
+				factoryClass.getMethod("create", List.class, List.class);
+			factories = new Object[Type.values().length];
+			for (final Type type : Type.values()) {
+				final List<Object> annotations = new ArrayList<Object>();
+				annotations.add(newAnnotation.newInstance(annotation("Name"),
+					"io.scif.imaris." + type.name_));
+				annotations.add(newAnnotation.newInstance(annotation("Label"),
+					type.label_));
+				annotations.add(newAnnotation.newInstance(annotation("Category"),
+					new String[] { "SCIFIO", "Imaris" }));
+				// a stack trace would cost more than many of the stages timed
+				annotations.add(newAnnotation.newInstance(annotation("StackTrace"),
+					false));
+				factories[type.ordinal()] = create.invoke(null, annotations, fields);
+			}
+			newEvent = factoryClass.getMethod("newEvent");
+			begin = eventClass.getMethod("begin");
+			end = eventClass.getMethod("end");
+			set = eventClass.getMethod("set", int.class, Object.class);
+			commit = eventClass.getMethod("commit");
+			listen();
+		}
+		catch (final Exception e) {
+			factories = null;
+		}
+		catch (final LinkageError e) {
+			factories = null;
+		}
+		FACTORIES = factories;
+		NEW_EVENT = newEvent;
+		BEGIN = begin;
+		END = end;
+		SET = set;
+		COMMIT = commit;
+	}
+
+	private ImarisEvents() {}
+
+	/**
+	 * Starts timing an event, or returns null if no recording is running.
+	 */
+	public static Object begin(final Type type) {
+		if (!recording_ || FACTORIES == null) {
+			return null;
+		}
+		try {
+			final Object event = NEW_EVENT.invoke(FACTORIES[type.ordinal()]);
+			BEGIN.invoke(event);
+			return event;
+		}
+		catch (final Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Ends an event started with {@link #begin} and commits it to the running
+	 * recordings. Does nothing if the event is null.
+	 */
+	public static void commit(final Object event, final int channel,
+		final int slice, final int frame, final int level, final long bytes)
+	{
+		if (event == null) {
+			return;
+		}
+		try {
+			END.invoke(event);
+			SET.invoke(event, 0, channel);
+			SET.invoke(event, 1, slice);
+			SET.invoke(event, 2, frame);
+			SET.invoke(event, 3, level);
+			SET.invoke(event, 4, bytes);
+			COMMIT.invoke(event);
+		}
+		catch (final Exception e) {
+			// events are only diagnostics, writing goes on without them
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends Annotation> annotation(final String name)
+		throws ClassNotFoundException
+	{
+		return (Class<? extends Annotation>) Class.forName("jdk.jfr." + name);
+	}
+
+	// Registers a FlightRecorderListener, implemented as a proxy since the
+	// interface can't be named here. Recordings started before it was added
+	// are found when it is told the recorder is initialized
+	private static void listen() throws Exception {
+		final Class<?> listenerClass =
+			Class.forName("jdk.jfr.FlightRecorderListener");
+		final Class<?> recorderClass = Class.forName("jdk.jfr.FlightRecorder");
+		final Method getRecordings = recorderClass.getMethod("getRecordings");
+		final Method getState =
+			Class.forName("jdk.jfr.Recording").getMethod("getState");
+		final Object listener =
+			Proxy.newProxyInstance(ImarisEvents.class.getClassLoader(),
+				new Class<?>[] { listenerClass }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object proxy, final Method method,
+						final Object[] args) throws Exception
+					{
+						final String name = method.getName();
+						if (name.equals("recordingStateChanged")) {
+							update(args[0], getState.invoke(args[0]));
+						}
+						else if (name.equals("recorderInitialized")) {
+							for (final Object recording : (List<?>) getRecordings.invoke(
+								args[0]))
+							{
+								update(recording, getState.invoke(recording));
+							}
+						}
+						else if (name.equals("equals")) {
+							return proxy == args[0];
+						}
+						else if (name.equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						}
+						else if (name.equals("toString")) {
+							return "Imaris events listener";
+						}
+						return null;
+					}
+				});
+		recorderClass.getMethod("addListener", listenerClass).invoke(null,
+			listener);
+	}
+
+	private static void update(final Object recording, final Object state) {
+		synchronized (RUNNING) {
+			if ("RUNNING".equals(state.toString())) {
+				RUNNING.add(recording);
+			}
+			else {
+				RUNNING.remove(recording);
+			}
+			recording_ = !RUNNING.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import hdf.hdf5lib.HDF5Constants;
+
+/**
+ * Pixel types that can be written to Imaris files, each with the Java array
+ * its pixels are passed in. Unsigned 32 bit pixels are passed as
+ * {@code int[]} holding the bits of each value. 8 and 16 bit data may use
+ * fewer bits per pixel, which only affects the initial display range.
+ */
+public enum ImarisPixelType {
+
+	UINT8(1, false),
+	UINT16(2, false),
+	UINT32(4, false),
+	FLOAT32(4, true);
+
+	private final int byteDepth_;
+	private final boolean floatingPoint_;
+
+	private ImarisPixelType(final int byteDepth, final boolean floatingPoint) {
+		byteDepth_ = byteDepth;
+		floatingPoint_ = floatingPoint;
+	}
+
+	public int getByteDepth() {
+		return byteDepth_;
+	}
+
+	public boolean isFloatingPoint() {
+		return floatingPoint_;
+	}
+
+	/** Gets the HDF5 type of datasets holding pixels of this type. */
+	public long getDataType() {
+		switch (this) {
+			case UINT8:
+				return HDF5Constants.H5T_NATIVE_UCHAR;
+			case UINT16:
+				return HDF5Constants.H5T_NATIVE_UINT16;
+			case UINT32:
+				return HDF5Constants.H5T_NATIVE_UINT32;
+			default:
+				return HDF5Constants.H5T_NATIVE_FLOAT;
+		}
+	}
+
+	/**
+	 * Gets the top of the display range used until the range of the data is
+	 * known: the largest value of the given bit depth, or 1 for floating point
+	 * data.
+	 */
+	public double getDefaultMax(final int bitDepth) {
+		return floatingPoint_ ? 1 : Math.pow(2, bitDepth) - 1;
+	}
+
+	/** Creates an array for the given number of pixels of this type. */
+	public Object newArray(final int length) {
+		switch (this) {
+			case UINT8:
+				return new byte[length];
+			case UINT16:
+				return new short[length];
+			case UINT32:
+				return new int[length];
+			default:
+				return new float[length];
+		}
+	}
+
+	/**
+	 * Gets the type whose pixels are held in arrays like the given one. 16 bit
+	 * pixels given as two bytes each are reported as {@link #UINT8}.
+	 */
+	public static ImarisPixelType forArray(final Object pixels) {
+		if (pixels instanceof short[]) {
+			return UINT16;
+		}
+		if (pixels instanceof int[]) {
+			return UINT32;
+		}
+		if (pixels instanceof float[]) {
+			return FLOAT32;
+		}
+		return UINT8;
+	}
+
+	/** Gets the unsigned integer type for the given number of bits. */
+	public static ImarisPixelType fromBitDepth(final int bitDepth) {
+		if (bitDepth <= 8) {
+			return UINT8;
+		}
+		return bitDepth <= 16 ? UINT16 : UINT32;
+	}
+}
@@ -0,0 +1,487 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+import hdf.hdf5lib.exceptions.HDF5Exception;
+import hdf.hdf5lib.exceptions.HDF5LibraryException;
+
+/**
+ * Reads the image data of Imaris 5.5 files. Every resolution level can be
+ * read on its own, so a low resolution level can be shown without touching
+ * the full resolution data. Regions are read as hyperslabs of the image,
+ * whose size is taken from the ImageSize attributes rather than from the
+ * datasets, which are padded out to whole chunks.
+ * <p>
+ * Chunked datasets are read a whole chunk at a time, and the decompressed
+ * chunks are kept in a {@link ChunkCache}. A chunk usually spans several
+ * slices, so reading the slices of a block one after another decompresses
+ * each chunk only once.
+ * </p>
+ */
+public class ImarisReader {
+
+	private static final long BYTES_PER_MB = 1048576;
+	public static final long DEFAULT_CACHE_BYTES = 256 * BYTES_PER_MB;
+
+	private final long fileID_;
+	private final List<int[]> levelSizes_ = new ArrayList<int[]>();
+	private final int numChannels_, numTimePoints_;
+	private final ImarisPixelType pixelType_;
+	private final double[] pixelSize_ = new double[] { 1, 1, 1 };
+	// datasets being read, least recently used first
+	private final LinkedHashMap<String, DataSet> openDataSets_;
+	private final ChunkCache chunkCache_;
+	private final long[] start_ = new long[3];
+	private final long[] count_ = new long[3];
+	private final long[] zero_ = new long[3];
+
+	public ImarisReader(final String path) throws HDF5LibraryException,
+		HDF5Exception
+	{
+		this(path, DEFAULT_CACHE_BYTES);
+	}
+
+	/**
+	 * @param cacheBytes number of bytes of decompressed chunks kept in memory
+	 */
+	public ImarisReader(final String path, final long cacheBytes)
+		throws HDF5LibraryException, HDF5Exception
+	{
+		chunkCache_ = new ChunkCache(cacheBytes);
+		fileID_ =
+			H5.H5Fopen(path, HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
+		try {
+			while (H5.H5Lexists(fileID_, "/DataSet/ResolutionLevel " +
+				levelSizes_.size(), HDF5Constants.H5P_DEFAULT))
+			{
+				levelSizes_.add(readImageSize(levelSizes_.size()));
+			}
+			if (levelSizes_.isEmpty()) {
+				throw new HDF5Exception("No resolution levels in " + path);
+			}
+			int numChannels = 0;
+			while (H5.H5Lexists(fileID_, getChannelPath(0, 0, numChannels),
+				HDF5Constants.H5P_DEFAULT))
+			{
+				numChannels++;
+			}
+			numChannels_ = numChannels;
+			int numTimePoints = 0;
+			while (H5.H5Lexists(fileID_, "/DataSet/ResolutionLevel 0/TimePoint " +
+				numTimePoints, HDF5Constants.H5P_DEFAULT))
+			{
+				numTimePoints++;
+			}
+			numTimePoints_ = numTimePoints;
+			pixelType_ = readPixelType();
+			readPixelSize();
+		}
+		catch (final HDF5Exception ex) {
+			H5.H5Fclose(fileID_);
+			throw ex;
+		}
+
+		final int maxOpen = Math.max(1, numChannels_);
+		openDataSets_ = new LinkedHashMap<String, DataSet>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(
+				final Map.Entry<String, DataSet> eldest)
+			{
+				if (size() <= maxOpen) {
+					return false;
+				}
+				closeDataSet(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	public int getNumResolutionLevels() {
+		return levelSizes_.size();
+	}
+
+	/** Gets the width of the image at a resolution level, without padding. */
+	public int getSizeX(final int level) {
+		return levelSizes_.get(level)[0];
+	}
+
+	public int getSizeY(final int level) {
+		return levelSizes_.get(level)[1];
+	}
+
+	public int getSizeZ(final int level) {
+		return levelSizes_.get(level)[2];
+	}
+
+	public int getNumChannels() {
+		return numChannels_;
+	}
+
+	public int getNumTimePoints() {
+		return numTimePoints_;
+	}
+
+	public ImarisPixelType getPixelType() {
+		return pixelType_;
+	}
+
+	/**
+	 * Gets the size of a full resolution pixel along X (0), Y (1) or Z (2),
+	 * from the extents of the image.
+	 */
+	public double getPixelSize(final int dimension) {
+		return pixelSize_[dimension];
+	}
+
+	/** Gets the cache of decompressed chunks, to check its hit rate. */
+	public ChunkCache getChunkCache() {
+		return chunkCache_;
+	}
+
+	/**
+	 * Reads a region of one slice as little endian bytes.
+	 *
+	 * @param pixels array with room for {@code width * height} pixels
+	 */
+	public synchronized void read(final int level, final int timePoint,
+		final int channel, final int z, final int x, final int y,
+		final int width, final int height, final byte[] pixels)
+		throws HDF5LibraryException, HDF5Exception
+	{
+		final DataSet dataSet = getDataSet(level, timePoint, channel);
+		if (dataSet.chunk_ == null) {
+			start_[0] = z;
+			start_[1] = y;
+			start_[2] = x;
+			count_[0] = 1;
+			count_[1] = height;
+			count_[2] = width;
+			H5.H5Sselect_hyperslab(dataSet.dataSpaceID_,
+				HDF5Constants.H5S_SELECT_SET, start_, null, count_, null);
+			final long memDataSpaceID =
+				H5.H5Screate_simple(1, new long[] { (long) width * height }, null);
+			try {
+				H5.H5Dread(dataSet.dataSetID_, memoryType(), memDataSpaceID,
+					dataSet.dataSpaceID_, HDF5Constants.H5P_DEFAULT, pixels);
+			}
+			finally {
+				H5.H5Sclose(memDataSpaceID);
+			}
+			return;
+		}
+
+		// Copy the rows of the region out of each chunk it overlaps
+		final long[] chunk = dataSet.chunk_;
+		final int bytesPerPixel = pixelType_.getByteDepth();
+		final int chunkZ = (int) (z / chunk[0]);
+		final int lastChunkY = (int) ((y + height - 1) / chunk[1]);
+		final int lastChunkX = (int) ((x + width - 1) / chunk[2]);
+		for (int chunkY = (int) (y / chunk[1]); chunkY <= lastChunkY; chunkY++) {
+			for (int chunkX = (int) (x / chunk[2]); chunkX <= lastChunkX; chunkX++) {
+				final ByteBuffer buffer =
+					getChunk(dataSet, level, timePoint, channel, chunkZ, chunkY,
+						chunkX);
+				final int chunkX0 = (int) (chunkX * chunk[2]);
+				final int chunkY0 = (int) (chunkY * chunk[1]);
+				final int x0 = Math.max(x, chunkX0);
+				final int x1 = (int) Math.min(x + width, chunkX0 + chunk[2]);
+				final int y1 = (int) Math.min(y + height, chunkY0 + chunk[1]);
+				final int rowBytes = (x1 - x0) * bytesPerPixel;
+				for (int row = Math.max(y, chunkY0); row < y1; row++) {
+					buffer.position((int) (((z - chunkZ * chunk[0]) * chunk[1] + row -
+						chunkY0) * chunk[2] + x0 - chunkX0) * bytesPerPixel);
+					buffer.get(pixels, ((row - y) * width + x0 - x) * bytesPerPixel,
+						rowBytes);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a whole channel of one time point as little endian bytes, slice
+	 * after slice.
+	 *
+	 * @param pixels array with room for every pixel of the resolution level
+	 */
+	public void readStack(final int level, final int timePoint,
+		final int channel, final byte[] pixels) throws HDF5LibraryException,
+		HDF5Exception
+	{
+		final int sizeX = getSizeX(level), sizeY = getSizeY(level);
+		final int sliceBytes = sizeX * sizeY * pixelType_.getByteDepth();
+		final byte[] slice = new byte[sliceBytes];
+		for (int z = 0; z < getSizeZ(level); z++) {
+			read(level, timePoint, channel, z, 0, 0, sizeX, sizeY, slice);
+			System.arraycopy(slice, 0, pixels, z * sliceBytes, sliceBytes);
+		}
+	}
+
+	public synchronized void close() {
+		final Iterator<DataSet> it = openDataSets_.values().iterator();
+		while (it.hasNext()) {
+			closeDataSet(it.next());
+			it.remove();
+		}
+		chunkCache_.clear();
+		try {
+			H5.H5Fclose(fileID_);
+		}
+		catch (final HDF5LibraryException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private static String getChannelPath(final int level, final int timePoint,
+		final int channel)
+	{
+		return "/DataSet/ResolutionLevel " + level + "/TimePoint " + timePoint +
+			"/Channel " + channel;
+	}
+
+	// The image size is stored with every channel, the dataset itself is
+	// padded to whole chunks
+	private int[] readImageSize(final int level) throws HDF5LibraryException,
+		HDF5Exception
+	{
+		final long groupID =
+			H5.H5Gopen(fileID_, getChannelPath(level, 0, 0),
+				HDF5Constants.H5P_DEFAULT);
+		try {
+			return new int[] { readInt(groupID, "ImageSizeX"),
+				readInt(groupID, "ImageSizeY"), readInt(groupID, "ImageSizeZ") };
+		}
+		finally {
+			H5.H5Gclose(groupID);
+		}
+	}
+
+	private static int readInt(final long id, final String name)
+		throws HDF5LibraryException, HDF5Exception
+	{
+		final String value = HDFUtils.readStringAttribute(id, name);
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (final NumberFormatException ex) {
+			throw new HDF5Exception("Invalid " + name + ": " + value);
+		}
+	}
+
+	private ImarisPixelType readPixelType() throws HDF5LibraryException,
+		HDF5Exception
+	{
+		final long dataSetID =
+			H5.H5Dopen(fileID_, getChannelPath(0, 0, 0) + "/Data",
+				HDF5Constants.H5P_DEFAULT);
+		final long typeID = H5.H5Dget_type(dataSetID);
+		try {
+			final int typeClass = H5.H5Tget_class(typeID);
+			final long size = H5.H5Tget_size(typeID);
+			if (typeClass == HDF5Constants.H5T_FLOAT && size == 4) {
+				return ImarisPixelType.FLOAT32;
+			}
+			if (typeClass == HDF5Constants.H5T_INTEGER) {
+				if (size == 1) {
+					return ImarisPixelType.UINT8;
+				}
+				if (size == 2) {
+					return ImarisPixelType.UINT16;
+				}
+				if (size == 4) {
+					return ImarisPixelType.UINT32;
+				}
+			}
+			throw new HDF5Exception("Unsupported Imaris pixel type");
+		}
+		finally {
+			H5.H5Tclose(typeID);
+			H5.H5Dclose(dataSetID);
+		}
+	}
+
+	// Files written elsewhere may lack the extents, in which case pixels are
+	// taken to be 1 unit in size
+	private void readPixelSize() throws HDF5LibraryException, HDF5Exception {
+		if (!H5.H5Lexists(fileID_, "/DataSetInfo", HDF5Constants.H5P_DEFAULT) ||
+			!H5.H5Lexists(fileID_, "/DataSetInfo/Image", HDF5Constants.H5P_DEFAULT))
+		{
+			return;
+		}
+		final long imageID =
+			H5.H5Gopen(fileID_, "/DataSetInfo/Image", HDF5Constants.H5P_DEFAULT);
+		try {
+			for (int d = 0; d < 3; d++) {
+				final String min = HDFUtils.readStringAttribute(imageID, "ExtMin" + d);
+				final String max = HDFUtils.readStringAttribute(imageID, "ExtMax" + d);
+				if (min == null || max == null) {
+					continue;
+				}
+				try {
+					final double size =
+						(Double.parseDouble(max) - Double.parseDouble(min)) /
+							levelSizes_.get(0)[d];
+					if (size > 0) {
+						pixelSize_[d] = size;
+					}
+				}
+				catch (final NumberFormatException ex) {
+					// keep the default
+				}
+			}
+		}
+		finally {
+			H5.H5Gclose(imageID);
+		}
+	}
+
+	private DataSet getDataSet(final int level, final int timePoint,
+		final int channel) throws HDF5LibraryException, HDF5Exception
+	{
+		final String path = getChannelPath(level, timePoint, channel) + "/Data";
+		DataSet dataSet = openDataSets_.get(path);
+		if (dataSet == null) {
+			final long accessListID =
+				H5.H5Pcreate(HDF5Constants.H5P_DATASET_ACCESS);
+			try {
+				// Whole chunks are read and cached here, so the library doesn't
+				// need to cache them as well
+				H5.H5Pset_chunk_cache(accessListID, 0, 0, 0.75);
+				dataSet = new DataSet(H5.H5Dopen(fileID_, path, accessListID));
+			}
+			finally {
+				H5.H5Pclose(accessListID);
+			}
+			openDataSets_.put(path, dataSet);
+		}
+		return dataSet;
+	}
+
+	// Gets a decompressed chunk from the cache, reading it if it isn't there.
+	// Chunks at the edge of a dataset that doesn't fill them are padded
+	private ByteBuffer getChunk(final DataSet dataSet, final int level,
+		final int timePoint, final int channel, final int chunkZ,
+		final int chunkY, final int chunkX) throws HDF5LibraryException,
+		HDF5Exception
+	{
+		final long[] chunk = dataSet.chunk_;
+		final long[] dims = dataSet.dims_;
+		final long chunksY = (dims[1] + chunk[1] - 1) / chunk[1];
+		final long chunksX = (dims[2] + chunk[2] - 1) / chunk[2];
+		final long index = (chunkZ * chunksY + chunkY) * chunksX + chunkX;
+		final ByteBuffer buffer = chunkCache_.get(level, timePoint, channel, index);
+		if (buffer != null) {
+			return buffer.duplicate();
+		}
+
+		start_[0] = chunkZ * chunk[0];
+		start_[1] = chunkY * chunk[1];
+		start_[2] = chunkX * chunk[2];
+		for (int d = 0; d < 3; d++) {
+			count_[d] = Math.min(chunk[d], dims[d] - start_[d]);
+		}
+		final byte[] pixels =
+			new byte[(int) (chunk[0] * chunk[1] * chunk[2]) *
+				pixelType_.getByteDepth()];
+		H5.H5Sselect_hyperslab(dataSet.dataSpaceID_,
+			HDF5Constants.H5S_SELECT_SET, start_, null, count_, null);
+		final long memDataSpaceID = H5.H5Screate_simple(3, chunk, null);
+		try {
+			H5.H5Sselect_hyperslab(memDataSpaceID, HDF5Constants.H5S_SELECT_SET,
+				zero_, null, count_, null);
+			H5.H5Dread(dataSet.dataSetID_, memoryType(), memDataSpaceID,
+				dataSet.dataSpaceID_, HDF5Constants.H5P_DEFAULT, pixels);
+		}
+		finally {
+			H5.H5Sclose(memDataSpaceID);
+		}
+		chunkCache_.put(level, timePoint, channel, index, pixels);
+		return ByteBuffer.wrap(pixels);
+	}
+
+	private void closeDataSet(final DataSet dataSet) {
+		try {
+			H5.H5Sclose(dataSet.dataSpaceID_);
+			H5.H5Dclose(dataSet.dataSetID_);
+		}
+		catch (final HDF5LibraryException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	// Pixels are returned in little endian order whatever the file's order
+	private long memoryType() {
+		switch (pixelType_) {
+			case UINT8:
+				return HDF5Constants.H5T_NATIVE_UINT8;
+			case UINT16:
+				return HDF5Constants.H5T_STD_U16LE;
+			case UINT32:
+				return HDF5Constants.H5T_STD_U32LE;
+			default:
+				return HDF5Constants.H5T_IEEE_F32LE;
+		}
+	}
+
+	// An open dataset with its shape, and its chunk shape if it is chunked
+	private static class DataSet {
+
+		private final long dataSetID_, dataSpaceID_;
+		private final long[] dims_ = new long[3];
+		private long[] chunk_;
+
+		public DataSet(final long dataSetID) throws HDF5LibraryException,
+			HDF5Exception
+		{
+			dataSetID_ = dataSetID;
+			dataSpaceID_ = H5.H5Dget_space(dataSetID);
+			H5.H5Sget_simple_extent_dims(dataSpaceID_, dims_, null);
+			final long createListID = H5.H5Dget_create_plist(dataSetID);
+			try {
+				if (H5.H5Pget_layout(createListID) == HDF5Constants.H5D_CHUNKED) {
+					chunk_ = new long[3];
+					H5.H5Pget_chunk(createListID, 3, chunk_);
+				}
+			}
+			finally {
+				H5.H5Pclose(createListID);
+			}
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.awt.Color;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hdf.hdf5lib.exceptions.HDF5Exception;
+import hdf.hdf5lib.exceptions.HDF5LibraryException;
+
+/**
+ * Splits the writing of one Imaris file among several processes, since one
+ * process writes through a single HDF5 library lock however many cores it
+ * has. Each shard is an ordinary Imaris file holding some of the time points,
+ * or some of the channels, written with its own {@link ImarisWriter}. Once
+ * every shard is complete, {@link #finish()} writes the master file, which
+ * holds the dataset information and external links to the time points in
+ * the shards.
+ * <p>
+ * A plan depends only on its parameters, so every process can make the same
+ * plan and write the shards it is given by index. Shards are named after the
+ * master file and must stay in its directory.
+ * </p>
+ */
+public class ImarisShardPlan {
+
+	private final String path_;
+	private final int width_, height_, numSlices_, numChannels_, numFrames_;
+	private final double pixelSizeXY_, pixelSizeZ_;
+	private final ImarisPixelType pixelType_;
+	private final int bitDepth_;
+	private final Color[] channelColors_;
+	private final ImarisWriterOptions options_;
+	private List<Shard> shards_;
+
+	/**
+	 * Plans shards of one time point each. The parameters are those of
+	 * {@link ImarisWriter}, except that the number of frames must be known.
+	 *
+	 * @param path path of the master file
+	 * @param options options the shards are written with
+	 */
+	public ImarisShardPlan(final String path, final long width,
+		final long height, final long numSlices, final long numChannels,
+		final long numFrames, final double pixelSizeXY, final double pixelSizeZ,
+		final ImarisPixelType pixelType, final int bitDepth,
+		final Color[] channelColors, final ImarisWriterOptions options)
+	{
+		if (numFrames <= 0) {
+			throw new IllegalArgumentException(
+				"Sharded files need a known number of frames");
+		}
+		path_ = path;
+		width_ = (int) width;
+		height_ = (int) height;
+		numSlices_ = (int) numSlices;
+		numChannels_ = (int) numChannels;
+		numFrames_ = (int) numFrames;
+		pixelSizeXY_ = pixelSizeXY;
+		pixelSizeZ_ = pixelSizeZ;
+		pixelType_ = pixelType;
+		bitDepth_ = bitDepth;
+		channelColors_ = channelColors;
+		options_ = options;
+		splitFrames(numFrames_);
+	}
+
+	/**
+	 * Splits the time points into shards of consecutive time points, each
+	 * holding all channels.
+	 */
+	public List<Shard> splitFrames(final int numShards) {
+		final List<Shard> shards = new ArrayList<Shard>();
+		final int n = Math.max(1, Math.min(numShards, numFrames_));
+		for (int i = 0; i < n; i++) {
+			final int first = (int) ((long) numFrames_ * i / n);
+			final int last = (int) ((long) numFrames_ * (i + 1) / n);
+			shards.add(new Shard(i, getShardPath(i), first, last - first, 0,
+				numChannels_));
+		}
+		shards_ = Collections.unmodifiableList(shards);
+		return shards_;
+	}
+
+	/**
+	 * Splits the channels into shards of consecutive channels, each holding
+	 * all time points.
+	 */
+	public List<Shard> splitChannels(final int numShards) {
+		final List<Shard> shards = new ArrayList<Shard>();
+		final int n = Math.max(1, Math.min(numShards, numChannels_));
+		for (int i = 0; i < n; i++) {
+			final int first = (int) ((long) numChannels_ * i / n);
+			final int last = (int) ((long) numChannels_ * (i + 1) / n);
+			shards.add(new Shard(i, getShardPath(i), 0, numFrames_, first, last -
+				first));
+		}
+		shards_ = Collections.unmodifiableList(shards);
+		return shards_;
+	}
+
+	public List<Shard> getShards() {
+		return shards_;
+	}
+
+	/**
+	 * Opens a writer for one shard. Its time points and channels are numbered
+	 * from 0, so time point {@code t} of the shard is time point
+	 * {@code shard.getFirstFrame() + t} of the master file.
+	 */
+	public ImarisWriter openWriter(final Shard shard) {
+		Color[] colors = null;
+		if (channelColors_ != null) {
+			colors = new Color[shard.getNumChannels()];
+			for (int c = 0; c < colors.length; c++) {
+				colors[c] =
+					channelColors_[(shard.getFirstChannel() + c) % channelColors_.length];
+			}
+		}
+		// written as a stream, so that every shard gets the block layout of a
+		// single time point whatever its number of time points
+		return new ImarisWriter(shard.getPath(), width_, height_, numSlices_, shard
+			.getNumChannels(), 0, pixelSizeXY_, pixelSizeZ_, pixelType_, bitDepth_,
+			colors, options_);
+	}
+
+	/**
+	 * Writes the master file once every shard is complete. The time points of
+	 * the master are links to those of the shards, and its display ranges and
+	 * TimeInfo come from the shards.
+	 *
+	 * @throws IllegalStateException if a shard is missing or incomplete
+	 */
+	public void finish() throws HDF5LibraryException, HDF5Exception {
+		for (final Shard shard : shards_) {
+			if (!new File(shard.getPath()).exists()) {
+				throw new IllegalStateException("Missing shard " + shard.getPath());
+			}
+		}
+		final ResolutionLevel[] resLevels =
+			ResolutionLevelMaker.calcLevels(width_, height_, numSlices_, 1,
+				pixelType_.getByteDepth());
+		final HDFWriter writer =
+			new HDFWriter(path_, numChannels_, numFrames_, numSlices_, pixelType_,
+				bitDepth_, pixelSizeXY_, pixelSizeZ_, channelColors_, width_, height_,
+				resLevels, new ImarisWriterOptions());
+		try {
+			writer.linkShards(shards_);
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	private String getShardPath(final int index) {
+		String base = path_;
+		if (base.toLowerCase().endsWith(".ims")) {
+			base = base.substring(0, base.length() - 4);
+		}
+		return base + "_shard" + index + ".ims";
+	}
+
+	/** The time points and channels written to one shard file. */
+	public static class Shard {
+
+		private final int index_;
+		private final String path_;
+		private final int firstFrame_, numFrames_, firstChannel_, numChannels_;
+
+		private Shard(final int index, final String path, final int firstFrame,
+			final int numFrames, final int firstChannel, final int numChannels)
+		{
+			index_ = index;
+			path_ = path;
+			firstFrame_ = firstFrame;
+			numFrames_ = numFrames;
+			firstChannel_ = firstChannel;
+			numChannels_ = numChannels;
+		}
+
+		public int getIndex() {
+			return index_;
+		}
+
+		public String getPath() {
+			return path_;
+		}
+
+		public int getFirstFrame() {
+			return firstFrame_;
+		}
+
+		public int getNumFrames() {
+			return numFrames_;
+		}
+
+		public int getFirstChannel() {
+			return firstChannel_;
+		}
+
+		public int getNumChannels() {
+			return numChannels_;
+		}
+	}
+}
@@ -30,136 +30,361 @@
 package io.scif.formats.imaris;
 
 import java.awt.Color;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /*
- * Class to encapsulate preprocessing and writing. preprocessing occurs on calling thread
- * and a designated thread for writing
+ * Class to encapsulate preprocessing and writing. Images are handed from the
+ * calling thread to a preprocessing thread, which puts them in order and
+ * downsamples and histograms batches of slices, and then to a designated
+ * thread for writing. Bounded queues between the stages make the calling
+ * thread wait only when a later stage falls behind
  */
 public class ImarisWriter {
 
-	private static final int SLICES_FIRST = 1;
-	private static final int CHANNELS_FIRST = 2;
+	private static final long BYTES_PER_MB = 1048576;
+	// queued after the last image to stop the preprocessing and writing threads
+	private static final PipelineImage END_OF_IMAGES =
+		new PipelineImage(null, -1, -1, -1, null);
 
-	private volatile LinkedList<PipelineImage> writingQueue_, preprocessQueue_;
-	private volatile boolean preprocessFinished_ = false;
-	private final Thread writingThread_;
+	private final BlockingQueue<PipelineImage> ingestQueue_, writingQueue_;
+	private final ArrayList<PipelineImage> preprocessQueue_;
+	private final Thread preprocessingThread_, writingThread_;
 	private final int numSlices_, numChannels_;
-	private int imageOrder_ = 0;
+	private final ReorderBuffer reorderBuffer_;
 	private final HDFWriter writer_;
 	private final HDFPreprocessor preprocessor_;
+	private final BufferPool pool_;
 	private final int slicesPerWrite_;
+	private final int firstFrame_;
+	private final ImarisWriterMetrics metrics_;
+	private final int byteDepth_;
+	// first exception of the preprocessing or writing thread, passed on to the
+	// caller by the next addImage, addTile or close. Later images are dropped
+	private volatile Exception failure_;
 
 	public ImarisWriter(final String path, final long width, final long height,
 		final long numSlices, final long numChannels, final long numFrames,
 		final double pixelSizeXY, final double pixelSizeZ, final int bitDepth,
 		final Color[] channelColors)
 	{
+		this(path, width, height, numSlices, numChannels, numFrames, pixelSizeXY,
+			pixelSizeZ, bitDepth, channelColors, new ImarisWriterOptions());
+	}
+
+	public ImarisWriter(final String path, final long width, final long height,
+		final long numSlices, final long numChannels, final long numFrames,
+		final double pixelSizeXY, final double pixelSizeZ, final int bitDepth,
+		final Color[] channelColors, final ImarisWriterOptions options)
+	{
+		this(path, width, height, numSlices, numChannels, numFrames, pixelSizeXY,
+			pixelSizeZ, ImarisPixelType.fromBitDepth(bitDepth), bitDepth,
+			channelColors, options);
+	}
+
+	/*
+	 * Pixels are passed as byte[], short[], int[] or float[] for 8, 16, 32 bit
+	 * unsigned and 32 bit floating point types. bitDepth may be lower than the
+	 * size of the type, for example 12 for 12 bit data in short[]
+	 *
+	 * numFrames may be 0 to stream an unknown number of time points. Time
+	 * points are then added until the writer is closed, and the number written
+	 * is recorded at close
+	 */
+	public ImarisWriter(final String path, final long width, final long height,
+		final long numSlices, final long numChannels, final long numFrames,
+		final double pixelSizeXY, final double pixelSizeZ,
+		final ImarisPixelType pixelType, final int bitDepth,
+		final Color[] channelColors, final ImarisWriterOptions options)
+	{
 
+		// When streaming, the block layout is chosen for a single time point,
+		// which is how the data is chunked anyway
 		final ResolutionLevel[] resLevels =
 			ResolutionLevelMaker.calcLevels((int) width, (int) height,
-				(int) numSlices, (int) numFrames, 1 + (bitDepth > 8 ? 1 : 0));
+				(int) numSlices, (int) Math.max(1, numFrames), pixelType
+					.getByteDepth());
+		pool_ = new BufferPool(resLevels, pixelType);
 		preprocessor_ =
-			new HDFPreprocessor((int) width, (int) height, bitDepth, resLevels);
+			new HDFPreprocessor((int) width, (int) height, pixelType, resLevels,
+				pool_, options.getThreads());
 		writer_ =
 			new HDFWriter(path, (int) numChannels, (int) numFrames, (int) numSlices,
-				bitDepth, pixelSizeXY, pixelSizeZ, channelColors, (int) width,
-				(int) height, resLevels);
+				pixelType, bitDepth, pixelSizeXY, pixelSizeZ, channelColors, (int) width,
+				(int) height, resLevels, options);
 		slicesPerWrite_ = resLevels[resLevels.length - 1].getReductionFactorZ();
+		firstFrame_ = writer_.getFirstFrame();
+		metrics_ = writer_.getMetrics();
+		byteDepth_ = pixelType.getByteDepth();
 		numSlices_ = (int) numSlices;
 		numChannels_ = (int) numChannels;
-		writingQueue_ = new LinkedList<PipelineImage>();
-		preprocessQueue_ = new LinkedList<PipelineImage>();
+		ingestQueue_ =
+			new ArrayBlockingQueue<PipelineImage>(options.getIngestDepth() > 0
+				? options.getIngestDepth() : slicesPerWrite_ * numChannels_);
+		writingQueue_ =
+			new ArrayBlockingQueue<PipelineImage>(options.getQueueDepth());
+		preprocessQueue_ = new ArrayList<PipelineImage>(slicesPerWrite_);
+		reorderBuffer_ =
+			new ReorderBuffer(numSlices_, numChannels_, slicesPerWrite_, width *
+				height * pixelType.getByteDepth(), options.getReorderMemory() *
+					BYTES_PER_MB, options.getScratchDirectory());
+		reorderBuffer_.setFirstFrame(firstFrame_);
+		preprocessingThread_ = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				preprocessing();
+			}
+		}, "Imaris preprocessing");
 		writingThread_ = new Thread(new Runnable() {
 
 			@Override
 			public void run() {
 				imarisWriting();
 			}
-		});
+		}, "Imaris writing");
+		preprocessingThread_.start();
 		writingThread_.start();
 	}
 
 	/*
-	 * Can accept images in either channels first or slices first order
+	 * Can accept images in any order. Images are held until the rest of their
+	 * batch of slices and all earlier time points have arrived, see
+	 * ImarisWriterOptions.setReorderMemory
 	 * First image must supply the date
+	 * Returns as soon as the image is queued for preprocessing, so pixels must
+	 * not be modified afterwards. Images are preprocessed and written on other
+	 * threads, so a failure there is thrown by a later addImage or by close,
+	 * as an IllegalStateException
 	 */
 	public void addImage(final Object pixels, final int slice, final int channel,
 		final int frame, final String dateAndTime)
 	{
-		// figure out ordering
-		if (imageOrder_ == 0 && slice == 1) {
-			imageOrder_ = SLICES_FIRST;
+		final long start = System.nanoTime();
+		add(takeImage(pixels, channel, slice, frame, dateAndTime), start,
+			metrics_.getPlanePixels());
+	}
+
+	/*
+	 * Adds 16 bit pixels given as two bytes each in the given order, so planes
+	 * read as bytes can be written without converting them to short[]
+	 */
+	public void addImage(final byte[] pixels, final ByteOrder byteOrder,
+		final int slice, final int channel, final int frame,
+		final String dateAndTime)
+	{
+		final long start = System.nanoTime();
+		final PipelineImage img =
+			takeImage(pixels, channel, slice, frame, dateAndTime);
+		img.byteOrder = byteOrder;
+		add(img, start, metrics_.getPlanePixels());
+	}
+
+	/*
+	 * Adds a tile of a slice, for slices too large to hold in memory at once.
+	 * Tiles may arrive in any order within a time point, but must cover each
+	 * slice exactly once and can't be mixed with whole images in one file.
+	 * Returns as soon as the tile is queued, so pixels must not be modified
+	 * afterwards
+	 */
+	public void addTile(final Object pixels, final int x, final int y,
+		final int width, final int height, final int slice, final int channel,
+		final int frame, final String dateAndTime)
+	{
+		final long start = System.nanoTime();
+		add(takeTile(pixels, null, x, y, width, height, slice, channel, frame,
+			dateAndTime), start, (long) width * height);
+	}
+
+	/*
+	 * Adds a tile of 16 bit pixels given as two bytes each in the given order
+	 */
+	public void addTile(final byte[] pixels, final ByteOrder byteOrder,
+		final int x, final int y, final int width, final int height,
+		final int slice, final int channel, final int frame,
+		final String dateAndTime)
+	{
+		final long start = System.nanoTime();
+		add(takeTile(pixels, byteOrder, x, y, width, height, slice, channel,
+			frame, dateAndTime), start, (long) width * height);
+	}
+
+	// Queues an image or tile for preprocessing. Waiting for room holds up the
+	// caller, so it is recorded as an event
+	private void add(final PipelineImage img, final long start,
+		final long pixels)
+	{
+		checkFailure();
+		// the image belongs to the preprocessing thread once queued
+		final int channel = img.channel, slice = img.slice, frame = img.frame;
+		if (!ingestQueue_.offer(img)) {
+			final Object event = ImarisEvents.begin(ImarisEvents.Type.ADD_WAIT);
+			put(ingestQueue_, img);
+			ImarisEvents.commit(event, channel, slice, frame, 0, pixels *
+				byteDepth_);
 		}
-		else if (imageOrder_ == 0 && channel == 1) {
-			imageOrder_ = CHANNELS_FIRST;
+		metrics_.record(ImarisWriterMetrics.Stage.ADD, start);
+		metrics_.addPixels(pixels);
+	}
+
+	// Runs on the preprocessing thread. The reorder buffer hands over whole
+	// batches of slices of one channel, in order
+	private void preprocess(final PipelineImage img) {
+		if (img.width > 0) {
+			// tiles are downsampled on the writing thread as they are written
+			final long start = System.nanoTime();
+			final Object event = ImarisEvents.begin(ImarisEvents.Type.PREPROCESS);
+			final PipelineImage tile = preprocessor_.processTile(img);
+			ImarisEvents.commit(event, img.channel, img.slice, img.frame, -1,
+				(long) img.width * img.height * byteDepth_);
+			metrics_.record(ImarisWriterMetrics.Stage.PREPROCESS, start);
+			put(writingQueue_, tile);
+			return;
 		}
 
 		// add to preprocess queue
-		preprocessQueue_.add(new PipelineImage(pixels, channel, slice, frame,
-			dateAndTime));
+		preprocessQueue_.add(img);
 
 		// add dummy slices if needed after the last slice in the stack
-		if (slice == numSlices_ - 1 && slicesPerWrite_ > 1) {
-			addDummySlices(slice, frame, channel);
+		if (img.slice == numSlices_ - 1 && slicesPerWrite_ > 1) {
+			addDummySlices(img.slice, img.frame, img.channel);
 		}
 
 		// wait until enough images in queue for preprocessing
-		if ((imageOrder_ == SLICES_FIRST && preprocessQueue_.size() == slicesPerWrite_) ||
-			(imageOrder_ == 0 && slicesPerWrite_ == 1))
-		{ // happens on first slice when slices per write is 1
-			// preprocess batch of slices in single channel to writer
-			final PipelineImage pi = preprocessor_.process(preprocessQueue_);
-			preprocessQueue_.clear();
-			synchronized (writingQueue_) {
-				writingQueue_.add(pi);
-			}
-		}
-		else if ((imageOrder_ == CHANNELS_FIRST) &&
-			preprocessQueue_.size() == slicesPerWrite_ * numChannels_)
-		{
-			// preprocess batch of slices in each channel to writer
-			for (int c = 0; c < numChannels_; c++) {
-				final LinkedList<PipelineImage> singleChannelBatch =
-					new LinkedList<PipelineImage>();
-				for (int s = 0; s < slicesPerWrite_; s++) {
-					singleChannelBatch.add(preprocessQueue_.get(s * numChannels_ + c));
-				}
-				final PipelineImage pi = preprocessor_.process(singleChannelBatch);
-				synchronized (writingQueue_) {
-					writingQueue_.add(pi);
-				}
-			}
-			preprocessQueue_.clear();
-		}
-
-		// wait until writer is caught up to return
-		int size = 0;
-		synchronized (writingQueue_) {
-			size = writingQueue_.size();
-		}
-		while (size > 2) {
+		if (preprocessQueue_.size() == slicesPerWrite_) {
+			final long start = System.nanoTime();
+			final Object event = ImarisEvents.begin(ImarisEvents.Type.PREPROCESS);
+			final PipelineImage pi;
 			try {
-				Thread.sleep(10);
-				synchronized (writingQueue_) {
-					size = writingQueue_.size();
-				}
+				pi = preprocessor_.process(preprocessQueue_);
+				ImarisEvents.commit(event, img.channel, preprocessQueue_.get(0).slice,
+					img.frame, -1, slicesPerWrite_ * metrics_.getPlanePixels() *
+						byteDepth_);
+				metrics_.record(ImarisWriterMetrics.Stage.PREPROCESS, start);
 			}
-			catch (final InterruptedException ex) {
-				Thread.currentThread().interrupt();
+			finally {
+				// a failed batch must not hold up the batches after it
+				clearPreprocessQueue();
 			}
+			put(writingQueue_, pi);
 		}
 	}
 
+	/**
+	 * Gets the first time point to add. It is 0 unless an existing file is
+	 * appended to, see {@link ImarisWriterOptions#setAppend}, in which case the
+	 * time points before it are already complete and must not be added again.
+	 */
+	public int getFirstFrame() {
+		return firstFrame_;
+	}
+
+	/**
+	 * Gets a snapshot of where time has gone in writing so far: the latencies
+	 * of each stage, the queue sizes, the bytes written at each resolution
+	 * level and the planes written per second.
+	 */
+	public ImarisWriterMetrics.Snapshot getMetrics() {
+		sampleQueues();
+		return metrics_.snapshot();
+	}
+
+	/**
+	 * Gets the number of images held until the rest of their batch or an earlier
+	 * time point arrives.
+	 */
+	public int getReorderPendingCount() {
+		return reorderBuffer_.getPendingCount();
+	}
+
+	/**
+	 * Gets the number of images waiting to be preprocessed. If this stays at
+	 * {@link #getIngestCapacity()}, preprocessing is falling behind and
+	 * {@link #addImage} is blocking.
+	 */
+	public int getIngestQueueSize() {
+		return ingestQueue_.size();
+	}
+
+	/**
+	 * Gets the number of images that can wait to be preprocessed before
+	 * {@link #addImage} blocks.
+	 */
+	public int getIngestCapacity() {
+		return ingestQueue_.size() + ingestQueue_.remainingCapacity();
+	}
+
+	/**
+	 * Gets the number of preprocessed batches waiting to be written. If this
+	 * stays at {@link #getQueueCapacity()}, the writing thread is falling behind
+	 * and preprocessing is blocking.
+	 */
+	public int getQueueSize() {
+		return writingQueue_.size();
+	}
+
+	/**
+	 * Gets the number of preprocessed batches that can wait to be written
+	 * before preprocessing blocks.
+	 */
+	public int getQueueCapacity() {
+		return writingQueue_.size() + writingQueue_.remainingCapacity();
+	}
+
+	/**
+	 * Writes the remaining images and closes the file.
+	 *
+	 * @throws IllegalStateException if preprocessing or writing failed, with
+	 *           the first failure as its cause, or if images were still
+	 *           waiting for the rest of their batch or time point
+	 */
 	public void close() {
-		preprocessFinished_ = true;
+		put(ingestQueue_, END_OF_IMAGES);
 		try {
+			preprocessingThread_.join();
 			writingThread_.join();
 		}
 		catch (final InterruptedException ex) {
 			Thread.currentThread().interrupt();
 		}
+		preprocessor_.close();
 		writer_.close();
+		final int pending = reorderBuffer_.getPendingCount();
+		if (pending > 0) {
+			fail(new IllegalStateException(pending + " images were dropped " +
+				"waiting for the rest of their batch or time point"));
+		}
+		try {
+			reorderBuffer_.close();
+		}
+		catch (final IOException ex) {
+			fail(ex);
+		}
+		checkFailure();
+	}
+
+	// Passes on a failure of the preprocessing or writing thread
+	private void checkFailure() {
+		final Exception failure = failure_;
+		if (failure != null) {
+			throw new IllegalStateException("Couldn't write Imaris file", failure);
+		}
+	}
+
+	// Keeps the first failure. Both threads go on taking images from their
+	// queues, so that callers and close() aren't left waiting
+	private synchronized void fail(final Exception ex) {
+		if (failure_ == null) {
+			failure_ = ex;
+		}
+	}
+
+	private void sampleQueues() {
+		metrics_.sampleQueues(ingestQueue_.size(), writingQueue_.size(),
+			reorderBuffer_.getPendingCount());
 	}
 
 	private void addDummySlices(final int sliceIndex, final int frameIndex,
@@ -167,51 +392,133 @@ public class ImarisWriter {
 	{
 		// Last slice for this time point in this channel-send dummy images as
 		// needed
-		if (imageOrder_ == CHANNELS_FIRST) {
-			// add full complement of dummy images for each channel
-			for (int s = sliceIndex + 1; s % slicesPerWrite_ != 0; s++) {
-				for (int c = 0; c < numChannels_; c++) {
-					preprocessQueue_.add(new PipelineImage(null, c, s, frameIndex, null));
-				}
-			}
+		for (int s = sliceIndex + 1; s % slicesPerWrite_ != 0; s++) {
+			preprocessQueue_.add(takeImage(null, channelIndex, s, frameIndex, null));
 		}
-		else {
-			// add dummy images for this channel only
-			for (int s = sliceIndex + 1; s % slicesPerWrite_ != 0; s++) {
-				preprocessQueue_.add(new PipelineImage(null, channelIndex, s,
-					frameIndex, null));
-			}
+	}
+
+	private PipelineImage takeImage(final Object pixels, final int channel,
+		final int slice, final int frame, final String dateAndTime)
+	{
+		final PipelineImage img = pool_.takeImage();
+		img.pixels = pixels;
+		img.channel = channel;
+		img.slice = slice;
+		img.frame = frame;
+		img.dateAndtime = dateAndTime;
+		return img;
+	}
+
+	private PipelineImage takeTile(final Object pixels,
+		final ByteOrder byteOrder, final int x, final int y, final int width,
+		final int height, final int slice, final int channel, final int frame,
+		final String dateAndTime)
+	{
+		final PipelineImage tile =
+			takeImage(pixels, channel, slice, frame, dateAndTime);
+		tile.byteOrder = byteOrder;
+		tile.x = x;
+		tile.y = y;
+		tile.width = width;
+		tile.height = height;
+		return tile;
+	}
+
+	private void clearPreprocessQueue() {
+		for (int i = 0; i < preprocessQueue_.size(); i++) {
+			pool_.giveImage(preprocessQueue_.get(i));
 		}
+		preprocessQueue_.clear();
 	}
 
-	private void imarisWriting() {
+	// Blocks until the next stage has room for another image. Images can't be
+	// dropped, so an interrupt is only passed on once the image is queued
+	private void put(final BlockingQueue<PipelineImage> queue,
+		final PipelineImage img)
+	{
+		boolean interrupted = false;
 		while (true) {
-			PipelineImage toWrite = null;
-			synchronized (writingQueue_) {
-				if (!writingQueue_.isEmpty()) {
-					toWrite = writingQueue_.removeFirst();
-				}
+			try {
+				queue.put(img);
+				break;
 			}
+			catch (final InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
-			if (toWrite == null) {
-				if (preprocessFinished_) {
-					break;
-				}
-				try {
-					Thread.sleep(10);
+	private void preprocessing() {
+		while (true) {
+			final PipelineImage img;
+			try {
+				img = ingestQueue_.take();
+			}
+			catch (final InterruptedException ex) {
+				// only close() can end preprocessing, so that no image is lost
+				continue;
+			}
+			if (img == END_OF_IMAGES) {
+				put(writingQueue_, END_OF_IMAGES);
+				break;
+			}
+			if (failure_ != null) {
+				pool_.giveImage(img);
+				continue;
+			}
+			try {
+				if (img.width > 0) {
+					preprocess(img);
 				}
-				catch (final InterruptedException ex) {
-					Thread.currentThread().interrupt();
+				else {
+					for (final PipelineImage released : reorderBuffer_.add(img)) {
+						preprocess(released);
+					}
 				}
 			}
-			else {
+			catch (final Exception ex) {
+				fail(ex);
+			}
+		}
+	}
+
+	private void imarisWriting() {
+		while (true) {
+			final PipelineImage toWrite;
+			try {
+				toWrite = writingQueue_.take();
+			}
+			catch (final InterruptedException ex) {
+				// only close() can end writing, so that no batch is lost
+				continue;
+			}
+			if (toWrite == END_OF_IMAGES) {
+				break;
+			}
+			sampleQueues();
+			// after a failure, batches are only given back to the pool
+			if (failure_ == null) {
 				try {
-					writer_.writeImage(toWrite);
+					if (toWrite.width > 0) {
+						writer_.writeTile(toWrite);
+					}
+					else {
+						writer_.writeImage(toWrite);
+					}
 				}
 				catch (final Exception ex) {
-					ex.printStackTrace();
+					fail(ex);
 				}
 			}
+			if (toWrite.width > 0) {
+				pool_.giveImage(toWrite);
+			}
+			else {
+				pool_.giveBatch(toWrite);
+			}
 		}
 
 	}
@@ -0,0 +1,306 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects timings and counts from the stages of an {@link ImarisWriter}, to
+ * show where the time goes. Recording costs a clock read and a few atomic
+ * additions per batch, slice or chunk, so it is always on. Metrics are read
+ * as a {@link Snapshot} from {@link ImarisWriter#getMetrics()}, or handed to a
+ * {@link Listener} after every time point, see
+ * {@link ImarisWriterOptions#setMetricsListener}.
+ */
+public class ImarisWriterMetrics {
+
+	/** Stages of writing that are timed. */
+	public enum Stage {
+
+		/** Callers of addImage and addTile, including waits for queue room */
+		ADD,
+		/** Downsampling and histogramming a batch of slices or a tile */
+		PREPROCESS,
+		/** Writing image data to the file */
+		WRITE,
+		/** Creating the groups and datasets of a time point */
+		CREATE_TIME_POINT,
+		/** Writing the remaining data and the histograms of a time point */
+		CLOSE_TIME_POINT
+	}
+
+	/** Receives the metrics as writing proceeds. */
+	public interface Listener {
+
+		/**
+		 * Called on the writing thread after every complete time point, so it
+		 * must return quickly.
+		 */
+		void timePointWritten(int frame, Snapshot snapshot);
+	}
+
+	// latencies are counted in buckets of powers of two nanoseconds, bucket b
+	// holding those below 2^b
+	private static final int NUM_BUCKETS = 64;
+	private final AtomicLongArray[] buckets_;
+	private final AtomicLongArray totalNanos_, maxNanos_;
+	// image bytes written and bytes stored in the file, per resolution level
+	private final AtomicLongArray bytesIn_, bytesOut_;
+	private final AtomicLong pixels_ = new AtomicLong();
+	private final long planePixels_;
+	private final long startNanos_ = System.nanoTime();
+	private int ingestQueueSize_, writingQueueSize_, reorderPending_;
+	private int maxIngestQueueSize_, maxWritingQueueSize_;
+
+	/**
+	 * @param planePixels number of pixels in a full resolution plane
+	 */
+	public ImarisWriterMetrics(final int numLevels, final long planePixels) {
+		final int numStages = Stage.values().length;
+		buckets_ = new AtomicLongArray[numStages];
+		for (int s = 0; s < numStages; s++) {
+			buckets_[s] = new AtomicLongArray(NUM_BUCKETS);
+		}
+		totalNanos_ = new AtomicLongArray(numStages);
+		maxNanos_ = new AtomicLongArray(numStages);
+		bytesIn_ = new AtomicLongArray(numLevels);
+		bytesOut_ = new AtomicLongArray(numLevels);
+		planePixels_ = Math.max(1, planePixels);
+	}
+
+	/**
+	 * Records one pass through a stage.
+	 *
+	 * @param startNanos {@link System#nanoTime()} when the stage was entered
+	 */
+	public void record(final Stage stage, final long startNanos) {
+		final long nanos = Math.max(0, System.nanoTime() - startNanos);
+		final int s = stage.ordinal();
+		buckets_[s].incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+		totalNanos_.addAndGet(s, nanos);
+		long max = maxNanos_.get(s);
+		while (nanos > max && !maxNanos_.compareAndSet(s, max, nanos)) {
+			max = maxNanos_.get(s);
+		}
+	}
+
+	/** Records pixels added to the writer, as a plane or a tile. */
+	public void addPixels(final long pixels) {
+		pixels_.addAndGet(pixels);
+	}
+
+	public long getPlanePixels() {
+		return planePixels_;
+	}
+
+	/**
+	 * Records the data of a channel of one time point at a resolution level.
+	 *
+	 * @param bytesIn bytes of image data
+	 * @param bytesOut bytes stored in the file, after compression
+	 */
+	public void addBytes(final int level, final long bytesIn,
+		final long bytesOut)
+	{
+		bytesIn_.addAndGet(level, bytesIn);
+		bytesOut_.addAndGet(level, bytesOut);
+	}
+
+	/** Records the number of images and batches waiting between stages. */
+	public synchronized void sampleQueues(final int ingestQueueSize,
+		final int writingQueueSize, final int reorderPending)
+	{
+		ingestQueueSize_ = ingestQueueSize;
+		writingQueueSize_ = writingQueueSize;
+		reorderPending_ = reorderPending;
+		maxIngestQueueSize_ = Math.max(maxIngestQueueSize_, ingestQueueSize);
+		maxWritingQueueSize_ = Math.max(maxWritingQueueSize_, writingQueueSize);
+	}
+
+	public synchronized Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/** The metrics collected up to one moment. */
+	public static class Snapshot {
+
+		private final long[][] buckets_;
+		private final long[] counts_, totalNanos_, maxNanos_;
+		private final long[] bytesIn_, bytesOut_;
+		private final long pixels_, planePixels_, elapsedNanos_;
+		private final int ingestQueueSize_, writingQueueSize_, reorderPending_;
+		private final int maxIngestQueueSize_, maxWritingQueueSize_;
+
+		private Snapshot(final ImarisWriterMetrics metrics) {
+			final int numStages = Stage.values().length;
+			buckets_ = new long[numStages][NUM_BUCKETS];
+			counts_ = new long[numStages];
+			totalNanos_ = new long[numStages];
+			maxNanos_ = new long[numStages];
+			for (int s = 0; s < numStages; s++) {
+				for (int b = 0; b < NUM_BUCKETS; b++) {
+					buckets_[s][b] = metrics.buckets_[s].get(b);
+					counts_[s] += buckets_[s][b];
+				}
+				totalNanos_[s] = metrics.totalNanos_.get(s);
+				maxNanos_[s] = metrics.maxNanos_.get(s);
+			}
+			bytesIn_ = new long[metrics.bytesIn_.length()];
+			bytesOut_ = new long[bytesIn_.length];
+			for (int level = 0; level < bytesIn_.length; level++) {
+				bytesIn_[level] = metrics.bytesIn_.get(level);
+				bytesOut_[level] = metrics.bytesOut_.get(level);
+			}
+			pixels_ = metrics.pixels_.get();
+			planePixels_ = metrics.planePixels_;
+			elapsedNanos_ = System.nanoTime() - metrics.startNanos_;
+			ingestQueueSize_ = metrics.ingestQueueSize_;
+			writingQueueSize_ = metrics.writingQueueSize_;
+			reorderPending_ = metrics.reorderPending_;
+			maxIngestQueueSize_ = metrics.maxIngestQueueSize_;
+			maxWritingQueueSize_ = metrics.maxWritingQueueSize_;
+		}
+
+		public long getCount(final Stage stage) {
+			return counts_[stage.ordinal()];
+		}
+
+		public long getTotalNanos(final Stage stage) {
+			return totalNanos_[stage.ordinal()];
+		}
+
+		public long getMaxNanos(final Stage stage) {
+			return maxNanos_[stage.ordinal()];
+		}
+
+		public double getMeanNanos(final Stage stage) {
+			final long count = getCount(stage);
+			return count == 0 ? 0 : (double) getTotalNanos(stage) / count;
+		}
+
+		/**
+		 * Gets an upper bound of a percentile of the latencies of a stage, to
+		 * within a factor of two.
+		 *
+		 * @param percentile between 0 and 100
+		 */
+		public long getPercentileNanos(final Stage stage,
+			final double percentile)
+		{
+			final long[] buckets = buckets_[stage.ordinal()];
+			final long count = getCount(stage);
+			if (count == 0) {
+				return 0;
+			}
+			final long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int b = 0; b < NUM_BUCKETS - 1; b++) {
+				seen += buckets[b];
+				if (seen >= rank) {
+					return Math.min(1L << b, getMaxNanos(stage));
+				}
+			}
+			return getMaxNanos(stage);
+		}
+
+		/**
+		 * Gets the latency histogram of a stage. Bin b counts latencies of at
+		 * least 2^(b-1) and below 2^b nanoseconds.
+		 */
+		public long[] getHistogram(final Stage stage) {
+			return buckets_[stage.ordinal()].clone();
+		}
+
+		/** Gets the number of images waiting to be preprocessed. */
+		public int getIngestQueueSize() {
+			return ingestQueueSize_;
+		}
+
+		public int getMaxIngestQueueSize() {
+			return maxIngestQueueSize_;
+		}
+
+		/** Gets the number of preprocessed batches waiting to be written. */
+		public int getWritingQueueSize() {
+			return writingQueueSize_;
+		}
+
+		public int getMaxWritingQueueSize() {
+			return maxWritingQueueSize_;
+		}
+
+		/** Gets the number of images waiting to be put in order. */
+		public int getReorderPendingCount() {
+			return reorderPending_;
+		}
+
+		public int getNumResolutionLevels() {
+			return bytesIn_.length;
+		}
+
+		/** Gets the bytes of image data written at a resolution level. */
+		public long getBytesIn(final int level) {
+			return bytesIn_[level];
+		}
+
+		/** Gets the bytes stored in the file for a resolution level. */
+		public long getBytesOut(final int level) {
+			return bytesOut_[level];
+		}
+
+		/**
+		 * Gets the bytes of image data over the bytes stored, for all
+		 * resolution levels, or 1 before anything is stored.
+		 */
+		public double getCompressionRatio() {
+			long in = 0, out = 0;
+			for (int level = 0; level < bytesIn_.length; level++) {
+				in += bytesIn_[level];
+				out += bytesOut_[level];
+			}
+			return out == 0 ? 1 : (double) in / out;
+		}
+
+		/** Gets the number of full resolution planes added, counting tiles. */
+		public double getPlanes() {
+			return (double) pixels_ / planePixels_;
+		}
+
+		/** Gets the time since the writer was created. */
+		public long getElapsedNanos() {
+			return elapsedNanos_;
+		}
+
+		public double getPlanesPerSecond() {
+			return elapsedNanos_ <= 0 ? 0 : getPlanes() * 1e9 / elapsedNanos_;
+		}
+	}
+}
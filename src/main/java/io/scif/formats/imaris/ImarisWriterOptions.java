@@ -0,0 +1,289 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.io.File;
+
+/**
+ * Tuning options for an {@link ImarisWriter}. The defaults reproduce the
+ * behavior of the writer before these options existed.
+ */
+public class ImarisWriterOptions {
+
+	private int threads_ = 1;
+	private int queueDepth_ = 2;
+	private int ingestDepth_ = 0;
+	private ImarisCompression compression_ = ImarisCompression.DEFAULT;
+	private int reorderMemory_ = 256;
+	private File scratchDirectory_ = null;
+	private boolean fullHistogram_ = false;
+	private boolean stackSlices_ = false;
+	private int chunkCache_ = 256;
+	private boolean append_ = false;
+	private int flushInterval_ = 0;
+	private ImarisWriterMetrics.Listener metricsListener_ = null;
+
+	/**
+	 * Gets the number of threads used to downsample and histogram each batch of
+	 * slices.
+	 */
+	public int getThreads() {
+		return threads_;
+	}
+
+	/**
+	 * Sets the number of threads used to downsample and histogram each batch of
+	 * slices. With more than one thread the work is split into row bands on a
+	 * dedicated pool. The pyramid and the histograms of 8 and 16 bit data are
+	 * identical to the single threaded path. For 32 bit data the histogram's
+	 * bins and floating point sum depend on how the pixels were split, so they
+	 * may differ slightly with the thread count, but not between runs.
+	 */
+	public ImarisWriterOptions setThreads(final int threads) {
+		threads_ = Math.max(1, threads);
+		return this;
+	}
+
+	/**
+	 * Gets the number of preprocessed batches that may wait for the writing
+	 * thread before {@link ImarisWriter#addImage} blocks.
+	 */
+	public int getQueueDepth() {
+		return queueDepth_;
+	}
+
+	/**
+	 * Sets the number of preprocessed batches that may wait for the writing
+	 * thread. Deeper queues smooth out stalls in writing at the cost of one
+	 * batch of every resolution level in memory per entry.
+	 */
+	public ImarisWriterOptions setQueueDepth(final int queueDepth) {
+		queueDepth_ = Math.max(1, queueDepth);
+		return this;
+	}
+
+	/**
+	 * Gets the number of images that may wait to be preprocessed before
+	 * {@link ImarisWriter#addImage} blocks, or 0 for one batch of slices in
+	 * every channel.
+	 */
+	public int getIngestDepth() {
+		return ingestDepth_;
+	}
+
+	/**
+	 * Sets the number of images that may wait to be preprocessed before
+	 * {@link ImarisWriter#addImage} blocks. Queued images are held by reference,
+	 * so this bounds how many caller arrays are kept alive. 0 selects one batch
+	 * of slices in every channel, enough to accept the next batch while the
+	 * current one is downsampled.
+	 */
+	public ImarisWriterOptions setIngestDepth(final int ingestDepth) {
+		ingestDepth_ = Math.max(0, ingestDepth);
+		return this;
+	}
+
+	/**
+	 * Gets how image data is compressed.
+	 */
+	public ImarisCompression getCompression() {
+		return compression_;
+	}
+
+	/**
+	 * Sets how image data is compressed. Defaults to
+	 * {@link ImarisCompression#DEFAULT}.
+	 */
+	public ImarisWriterOptions setCompression(
+		final ImarisCompression compression)
+	{
+		compression_ = compression == null ? ImarisCompression.DEFAULT
+			: compression;
+		return this;
+	}
+
+	/**
+	 * Gets the number of megabytes of images waiting to be put in order that
+	 * are kept in memory.
+	 */
+	public int getReorderMemory() {
+		return reorderMemory_;
+	}
+
+	/**
+	 * Sets the number of megabytes of images waiting to be put in order that
+	 * are kept in memory. Images that arrive before the rest of their batch of
+	 * slices or before an earlier time point is complete are held until they
+	 * can be preprocessed; beyond this budget they are moved to a memory mapped
+	 * scratch file. Defaults to 256.
+	 */
+	public ImarisWriterOptions setReorderMemory(final int reorderMemory) {
+		reorderMemory_ = Math.max(0, reorderMemory);
+		return this;
+	}
+
+	/**
+	 * Gets the directory of the scratch file used by the reorder stage, or null
+	 * for the default temporary directory.
+	 */
+	public File getScratchDirectory() {
+		return scratchDirectory_;
+	}
+
+	/**
+	 * Sets the directory of the scratch file used by the reorder stage. A local
+	 * disk is best, since spilled images are read back through a memory map.
+	 */
+	public ImarisWriterOptions setScratchDirectory(final File scratchDirectory) {
+		scratchDirectory_ = scratchDirectory;
+		return this;
+	}
+
+	/**
+	 * Gets whether 16 bit data gets a histogram with a bin for every value.
+	 */
+	public boolean isFullHistogram() {
+		return fullHistogram_;
+	}
+
+	/**
+	 * Sets whether 16 bit data gets a histogram with a bin for every value,
+	 * written as {@code Histogram65536} next to the 256 bin histogram of each
+	 * channel at full resolution. Readers can take exact statistics from it
+	 * without reading the image data. Has no effect on 8 bit data, whose
+	 * histogram already has a bin per value.
+	 */
+	public ImarisWriterOptions setFullHistogram(final boolean fullHistogram) {
+		fullHistogram_ = fullHistogram;
+		return this;
+	}
+
+	/**
+	 * Gets whether uncompressed slices are collected into whole Z blocks
+	 * before they are written.
+	 */
+	public boolean isStackSlices() {
+		return stackSlices_;
+	}
+
+	/**
+	 * Sets whether slices written through the HDF5 filter pipeline are
+	 * collected into whole Z blocks, so that every chunk is written once rather
+	 * than once for each of its slices. This holds a block of slices in memory
+	 * for every channel and resolution level, as much as the full resolution
+	 * slice size times the Z size of a block per channel, so it is off by
+	 * default.
+	 */
+	public ImarisWriterOptions setStackSlices(final boolean stackSlices) {
+		stackSlices_ = stackSlices;
+		return this;
+	}
+
+	/**
+	 * Gets the number of megabytes of HDF5 chunk cache shared by the image
+	 * datasets of a time point.
+	 */
+	public int getChunkCache() {
+		return chunkCache_;
+	}
+
+	/**
+	 * Sets the number of megabytes of HDF5 chunk cache shared by the image
+	 * datasets of a time point, one for every channel and resolution level.
+	 * Each dataset gets room for a whole Z block of chunks, so that a chunk is
+	 * compressed once rather than once for each of its slices. If that doesn't
+	 * fit, every dataset gets the same smaller share of its Z block, but at
+	 * least one chunk. Defaults to 256.
+	 */
+	public ImarisWriterOptions setChunkCache(final int chunkCache) {
+		chunkCache_ = Math.max(0, chunkCache);
+		return this;
+	}
+
+	/**
+	 * Gets whether an existing file is appended to rather than replaced.
+	 */
+	public boolean isAppend() {
+		return append_;
+	}
+
+	/**
+	 * Sets whether an existing file is appended to rather than replaced, to
+	 * resume writing after a crash or restart. Time points whose histograms
+	 * were all written are kept, later ones are written again. See
+	 * {@link ImarisWriter#getFirstFrame}. The file must have been written with
+	 * the same image size, resolution levels and channels. Only time points
+	 * that were flushed are sure to survive a crash, see
+	 * {@link #setFlushInterval}.
+	 */
+	public ImarisWriterOptions setAppend(final boolean append) {
+		append_ = append;
+		return this;
+	}
+
+	/**
+	 * Gets the number of complete time points between flushes of the file, or
+	 * 0 if it is only flushed when it is closed.
+	 */
+	public int getFlushInterval() {
+		return flushInterval_;
+	}
+
+	/**
+	 * Sets the number of complete time points between flushes of the file.
+	 * Flushed time points survive a crash and can be resumed with
+	 * {@link #setAppend}, but every flush writes out all metadata and cached
+	 * chunks, which costs time with many short time points. Defaults to 0,
+	 * which only flushes the file when it is closed.
+	 */
+	public ImarisWriterOptions setFlushInterval(final int flushInterval) {
+		flushInterval_ = Math.max(0, flushInterval);
+		return this;
+	}
+
+	/**
+	 * Gets the listener given the metrics after every time point, or null.
+	 */
+	public ImarisWriterMetrics.Listener getMetricsListener() {
+		return metricsListener_;
+	}
+
+	/**
+	 * Sets a listener given a snapshot of the metrics of the writer after every
+	 * complete time point, on the writing thread. Metrics can also be read at
+	 * any time with {@link ImarisWriter#getMetrics()}.
+	 */
+	public ImarisWriterOptions setMetricsListener(
+		final ImarisWriterMetrics.Listener metricsListener)
+	{
+		metricsListener_ = metricsListener;
+		return this;
+	}
+}
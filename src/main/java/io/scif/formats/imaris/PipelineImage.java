@@ -29,6 +29,8 @@
 
 package io.scif.formats.imaris;
 
+import java.nio.ByteOrder;
+
 /**
  * @author henrypinkard
  */
@@ -36,8 +38,15 @@ public class PipelineImage {
 
 	public int channel, slice, frame;
 	public Object pixels;
-	public long[][] histograms;
+	// set on the last batch of a channel in a time point
+	public Histogram histogram;
 	public String dateAndtime;
+	// bounds of a tile of a full resolution slice, width and height are 0 for
+	// whole slices and batches
+	public int x, y, width, height;
+	// order of the bytes of 16 bit full resolution pixels given as byte[], null
+	// if they are short[] or 8 bit
+	public ByteOrder byteOrder;
 
 	public PipelineImage(final Object pix, final int chnl, final int slce,
 		final int frm, final String dnt)
@@ -0,0 +1,609 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the lower resolution levels for one batch of slices. Rather than
+ * revisiting the full resolution data for every level, each level is summed
+ * from the highest level below it whose reduction factors divide its own, so
+ * most of the pyramid is built from already reduced data. Sums are carried
+ * between levels and only divided when a level is output, so the averages are
+ * identical to averaging the full resolution pixels directly.
+ * <p>
+ * Given an executor, each level is split into bands of output rows that are
+ * built in parallel. Bands never share output pixels, so the result does not
+ * depend on the number of threads.
+ * </p>
+ */
+public class PyramidBuilder {
+
+	private final int numLevels_;
+	private final int batchSize_;
+	private final int width_, height_;
+	// level each level is summed from
+	private final int[] sourceLevel_;
+	// reduction factors relative to the source level
+	private final int[] relFactorX_, relFactorY_;
+	// reduction factors relative to level 0
+	private final int[] factorZ_;
+	private final long[] divisor_;
+	private final int[] sizeX_, sizeY_;
+	// number of output columns and rows made up entirely of image pixels
+	private final int[] fullX_, fullY_;
+	// running sums indexed by level and slice index within the batch. Only slice
+	// indices that are a multiple of the level's z reduction factor are used.
+	// Floating point pixels are summed in floatSums_ instead; only the one
+	// needed is created, by the first batch
+	private long[][][] sums_;
+	private double[][][] floatSums_;
+	private final BufferPool pool_;
+	private final ExecutorService executor_;
+	// row band tasks of each level, only used with an executor
+	private final List<RowBand>[] bands_;
+	// batch being built, shared with row band tasks
+	private Object[] slices_;
+	private Object[][] pixelsToWrite_;
+	private int numSlices_;
+	// byte order of 16 bit slices given as bytes, null if slices are held in
+	// arrays of their own type
+	private ByteOrder byteOrder_;
+	private boolean floats_;
+
+	public PyramidBuilder(final int width, final int height,
+		final ResolutionLevel[] resLevels)
+	{
+		this(width, height, resLevels, null, null, 1);
+	}
+
+	/**
+	 * @param pool source of the lower resolution pixel arrays, or null to
+	 *          allocate new arrays for every batch
+	 * @param executor executor that builds row bands in parallel, or null to
+	 *          build on the calling thread
+	 * @param numThreads number of threads of the executor
+	 */
+	@SuppressWarnings("unchecked")
+	public PyramidBuilder(final int width, final int height,
+		final ResolutionLevel[] resLevels, final BufferPool pool,
+		final ExecutorService executor, final int numThreads)
+	{
+		numLevels_ = resLevels.length;
+		batchSize_ = resLevels[numLevels_ - 1].getReductionFactorZ();
+		width_ = width;
+		height_ = height;
+		sourceLevel_ = new int[numLevels_];
+		relFactorX_ = new int[numLevels_];
+		relFactorY_ = new int[numLevels_];
+		factorZ_ = new int[numLevels_];
+		divisor_ = new long[numLevels_];
+		sizeX_ = new int[numLevels_];
+		sizeY_ = new int[numLevels_];
+		fullX_ = new int[numLevels_];
+		fullY_ = new int[numLevels_];
+		pool_ = pool;
+		executor_ = executor;
+		bands_ = new List[numLevels_];
+
+		for (int level = 0; level < numLevels_; level++) {
+			final ResolutionLevel resLevel = resLevels[level];
+			final int fx = resLevel.getReductionFactorX();
+			final int fy = resLevel.getReductionFactorY();
+			final int fz = resLevel.getReductionFactorZ();
+			sizeX_[level] = resLevel.getImageSizeX();
+			sizeY_[level] = resLevel.getImageSizeY();
+			factorZ_[level] = fz;
+			divisor_[level] = (long) fx * fy * fz;
+			fullX_[level] = width / fx;
+			fullY_[level] = height / fy;
+			if (level == 0) {
+				continue;
+			}
+
+			// Factors are rounded up from the image size ratio, so they do not
+			// always nest. Use the highest level whose blocks tile this level's
+			// blocks exactly, which is at worst level 0
+			int source = level - 1;
+			while (source > 0 &&
+				(fx % resLevels[source].getReductionFactorX() != 0 ||
+					fy % resLevels[source].getReductionFactorY() != 0 || fz %
+					resLevels[source].getReductionFactorZ() != 0))
+			{
+				source--;
+			}
+			sourceLevel_[level] = source;
+			relFactorX_[level] = fx / resLevels[source].getReductionFactorX();
+			relFactorY_[level] = fy / resLevels[source].getReductionFactorY();
+
+			if (executor_ != null) {
+				// a few bands per thread to even out uneven progress
+				final int numBands = Math.min(sizeY_[level], 4 * numThreads);
+				bands_[level] = new ArrayList<RowBand>(numBands);
+				for (int band = 0; band < numBands; band++) {
+					bands_[level].add(new RowBand(level, band * sizeY_[level] /
+						numBands, (band + 1) * sizeY_[level] / numBands));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes every lower resolution level of a batch of slices.
+	 *
+	 * @param slices full resolution pixels of each slice in the batch, all
+	 *          {@code byte[]}, {@code short[]}, {@code int[]} (unsigned 32 bit)
+	 *          or {@code float[]}. Trailing entries may be
+	 *          null for the dummy slices that pad out the last batch of a stack;
+	 *          these are summed as copies of the first slice, so the bottom slice
+	 *          of lower resolutions is not darker than the others.
+	 * @param numSlices number of slices in the batch
+	 * @return pixels indexed by resolution level and slice index. Level 0 holds
+	 *         the given slices; lower levels hold an image at every slice index
+	 *         that is a multiple of the level's z reduction factor.
+	 */
+	public Object[][] build(final Object[] slices, final int numSlices) {
+		return build(slices, numSlices, new Object[numLevels_][numSlices]);
+	}
+
+	/**
+	 * Computes every lower resolution level of a batch of slices into an
+	 * existing array, as {@link #build(Object[], int)}.
+	 *
+	 * @param pixelsToWrite array indexed by resolution level and slice index
+	 *          with room for at least {@code numSlices} slices. Entries not
+	 *          holding a slice are left untouched.
+	 */
+	public Object[][] build(final Object[] slices, final int numSlices,
+		final Object[][] pixelsToWrite)
+	{
+		return build(slices, numSlices, pixelsToWrite, null);
+	}
+
+	/**
+	 * Computes every lower resolution level of a batch of 16 bit slices given
+	 * as {@code byte[]}, as {@link #build(Object[], int, Object[][])}. Lower
+	 * levels are {@code short[]}.
+	 *
+	 * @param byteOrder order of the bytes of each pixel, or null if the slices
+	 *          are not 16 bit pixels given as bytes
+	 */
+	public Object[][] build(final Object[] slices, final int numSlices,
+		final Object[][] pixelsToWrite, final ByteOrder byteOrder)
+	{
+		final ImarisPixelType pixelType =
+			byteOrder != null ? ImarisPixelType.UINT16 : ImarisPixelType
+				.forArray(slices[0]);
+		System.arraycopy(slices, 0, pixelsToWrite[0], 0, numSlices);
+		slices_ = slices;
+		numSlices_ = numSlices;
+		pixelsToWrite_ = pixelsToWrite;
+		byteOrder_ = byteOrder;
+		floats_ = pixelType.isFloatingPoint();
+		if (numLevels_ > 1 && (floats_ ? floatSums_ == null : sums_ == null)) {
+			createSums();
+		}
+
+		for (int level = 1; level < numLevels_; level++) {
+			final int numPixels = sizeX_[level] * sizeY_[level];
+			for (int i = 0; i < numSlices; i += factorZ_[level]) {
+				if (pool_ != null) {
+					pixelsToWrite[level][i] = pool_.takePixels(level);
+				}
+				else {
+					pixelsToWrite[level][i] = pixelType.newArray(numPixels);
+				}
+			}
+			// a level can only be started once the level it is summed from is done
+			if (executor_ == null) {
+				buildRows(level, 0, sizeY_[level]);
+			}
+			else {
+				runAll(bands_[level]);
+			}
+		}
+		slices_ = null;
+		pixelsToWrite_ = null;
+		return pixelsToWrite;
+	}
+
+	private void createSums() {
+		if (floats_) {
+			floatSums_ = new double[numLevels_][][];
+		}
+		else {
+			sums_ = new long[numLevels_][][];
+		}
+		for (int level = 1; level < numLevels_; level++) {
+			final int numPixels = sizeX_[level] * sizeY_[level];
+			if (floats_) {
+				floatSums_[level] = new double[batchSize_][];
+			}
+			else {
+				sums_[level] = new long[batchSize_][];
+			}
+			for (int i = 0; i < batchSize_; i += factorZ_[level]) {
+				if (floats_) {
+					floatSums_[level][i] = new double[numPixels];
+				}
+				else {
+					sums_[level][i] = new long[numPixels];
+				}
+			}
+		}
+	}
+
+	private void runAll(final List<RowBand> bands) {
+		try {
+			for (final Future<Void> future : executor_.invokeAll(bands)) {
+				future.get();
+			}
+		}
+		catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		catch (final ExecutionException ex) {
+			throw new IllegalStateException("Couldn't downsample batch", ex
+				.getCause());
+		}
+	}
+
+	// Sums and averages rows dsY0 to dsY1 of every image in a level
+	private void buildRows(final int level, final int dsY0, final int dsY1) {
+		final int fz = factorZ_[level];
+		final int sizeX = sizeX_[level];
+		for (int i = 0; i < numSlices_; i += fz) {
+			if (floats_) {
+				Arrays.fill(floatSums_[level][i], dsY0 * sizeX, dsY1 * sizeX, 0);
+			}
+			else {
+				Arrays.fill(sums_[level][i], dsY0 * sizeX, dsY1 * sizeX, 0);
+			}
+		}
+
+		final int source = sourceLevel_[level];
+		final int sourceFZ = source == 0 ? 1 : factorZ_[source];
+		for (int i = 0; i < numSlices_; i += sourceFZ) {
+			final int sumIndex = i - i % fz;
+			if (source > 0) {
+				if (floats_) {
+					sumDoubles(floatSums_[source][i], floatSums_[level][sumIndex],
+						source, level, dsY0, dsY1);
+				}
+				else {
+					sumLongs(sums_[source][i], sums_[level][sumIndex], source, level,
+						dsY0, dsY1);
+				}
+				continue;
+			}
+			final Object pixels = slices_[i] == null ? slices_[0] : slices_[i];
+			if (pixels instanceof float[]) {
+				sumFloats((float[]) pixels, floatSums_[level][sumIndex], level, dsY0,
+					dsY1);
+			}
+			else if (pixels instanceof int[]) {
+				sumInts((int[]) pixels, sums_[level][sumIndex], level, dsY0, dsY1);
+			}
+			else if (pixels instanceof short[]) {
+				sumShorts((short[]) pixels, sums_[level][sumIndex], level, dsY0,
+					dsY1);
+			}
+			else if (byteOrder_ != null) {
+				sumPackedShorts((byte[]) pixels,
+					byteOrder_ == ByteOrder.LITTLE_ENDIAN, sums_[level][sumIndex],
+					level, dsY0, dsY1);
+			}
+			else {
+				sumBytes((byte[]) pixels, sums_[level][sumIndex], level, dsY0, dsY1);
+			}
+		}
+
+		for (int i = 0; i < numSlices_; i += fz) {
+			// only blocks containing fz real or dummy slices are averaged
+			final boolean zFull = i + fz <= numSlices_;
+			final Object pixels = pixelsToWrite_[level][i];
+			if (pixels instanceof float[]) {
+				averageFloats(floatSums_[level][i], (float[]) pixels, level, zFull,
+					dsY0, dsY1);
+			}
+			else if (pixels instanceof int[]) {
+				averageInts(sums_[level][i], (int[]) pixels, level, zFull, dsY0,
+					dsY1);
+			}
+			else if (pixels instanceof short[]) {
+				averageShorts(sums_[level][i], (short[]) pixels, level, zFull, dsY0,
+					dsY1);
+			}
+			else {
+				averageBytes(sums_[level][i], (byte[]) pixels, level, zFull, dsY0,
+					dsY1);
+			}
+		}
+	}
+
+	private void sumBytes(final byte[] pixels, final long[] sum, final int level,
+		final int dsY0, final int dsY1)
+	{
+		final int fx = relFactorX_[level], fy = relFactorY_[level];
+		final int sizeX = sizeX_[level];
+		final int yEnd = Math.min(dsY1 * fy, height_);
+		for (int y = dsY0 * fy, dsRow = dsY0 * sizeX; y < yEnd; dsRow += sizeX) {
+			final int blockEnd = Math.min(y + fy, yEnd);
+			for (; y < blockEnd; y++) {
+				final int row = y * width_;
+				for (int x = 0, dsIndex = dsRow; x < width_; dsIndex++) {
+					final int xEnd = Math.min(x + fx, width_);
+					long val = 0;
+					for (; x < xEnd; x++) {
+						val += pixels[row + x] & 0xff;
+					}
+					sum[dsIndex] += val;
+				}
+			}
+		}
+	}
+
+	private void sumShorts(final short[] pixels, final long[] sum,
+		final int level, final int dsY0, final int dsY1)
+	{
+		final int fx = relFactorX_[level], fy = relFactorY_[level];
+		final int sizeX = sizeX_[level];
+		final int yEnd = Math.min(dsY1 * fy, height_);
+		for (int y = dsY0 * fy, dsRow = dsY0 * sizeX; y < yEnd; dsRow += sizeX) {
+			final int blockEnd = Math.min(y + fy, yEnd);
+			for (; y < blockEnd; y++) {
+				final int row = y * width_;
+				for (int x = 0, dsIndex = dsRow; x < width_; dsIndex++) {
+					final int xEnd = Math.min(x + fx, width_);
+					long val = 0;
+					for (; x < xEnd; x++) {
+						val += pixels[row + x] & 0xffff;
+					}
+					sum[dsIndex] += val;
+				}
+			}
+		}
+	}
+
+	// 16 bit pixels stored as two bytes each
+	private void sumPackedShorts(final byte[] pixels,
+		final boolean littleEndian, final long[] sum, final int level,
+		final int dsY0, final int dsY1)
+	{
+		final int fx = relFactorX_[level], fy = relFactorY_[level];
+		final int sizeX = sizeX_[level];
+		// offsets of the low and high byte of a pixel
+		final int lo = littleEndian ? 0 : 1, hi = 1 - lo;
+		final int yEnd = Math.min(dsY1 * fy, height_);
+		for (int y = dsY0 * fy, dsRow = dsY0 * sizeX; y < yEnd; dsRow += sizeX) {
+			final int blockEnd = Math.min(y + fy, yEnd);
+			for (; y < blockEnd; y++) {
+				final int row = 2 * y * width_;
+				for (int x = 0, dsIndex = dsRow; x < width_; dsIndex++) {
+					final int xEnd = Math.min(x + fx, width_);
+					long val = 0;
+					for (int i = row + 2 * x; x < xEnd; x++, i += 2) {
+						val += (pixels[i + lo] & 0xff) | (pixels[i + hi] & 0xff) << 8;
+					}
+					sum[dsIndex] += val;
+				}
+			}
+		}
+	}
+
+	// unsigned 32 bit pixels
+	private void sumInts(final int[] pixels, final long[] sum, final int level,
+		final int dsY0, final int dsY1)
+	{
+		final int fx = relFactorX_[level], fy = relFactorY_[level];
+		final int sizeX = sizeX_[level];
+		final int yEnd = Math.min(dsY1 * fy, height_);
+		for (int y = dsY0 * fy, dsRow = dsY0 * sizeX; y < yEnd; dsRow += sizeX) {
+			final int blockEnd = Math.min(y + fy, yEnd);
+			for (; y < blockEnd; y++) {
+				final int row = y * width_;
+				for (int x = 0, dsIndex = dsRow; x < width_; dsIndex++) {
+					final int xEnd = Math.min(x + fx, width_);
+					long val = 0;
+					for (; x < xEnd; x++) {
+						val += pixels[row + x] & 0xffffffffL;
+					}
+					sum[dsIndex] += val;
+				}
+			}
+		}
+	}
+
+	private void sumFloats(final float[] pixels, final double[] sum,
+		final int level, final int dsY0, final int dsY1)
+	{
+		final int fx = relFactorX_[level], fy = relFactorY_[level];
+		final int sizeX = sizeX_[level];
+		final int yEnd = Math.min(dsY1 * fy, height_);
+		for (int y = dsY0 * fy, dsRow = dsY0 * sizeX; y < yEnd; dsRow += sizeX) {
+			final int blockEnd = Math.min(y + fy, yEnd);
+			for (; y < blockEnd; y++) {
+				final int row = y * width_;
+				for (int x = 0, dsIndex = dsRow; x < width_; dsIndex++) {
+					final int xEnd = Math.min(x + fx, width_);
+					double val = 0;
+					for (; x < xEnd; x++) {
+						val += pixels[row + x];
+					}
+					sum[dsIndex] += val;
+				}
+			}
+		}
+	}
+
+	private void sumLongs(final long[] sourceSum, final long[] sum,
+		final int source, final int level, final int dsY0, final int dsY1)
+	{
+		final int fx = relFactorX_[level], fy = relFactorY_[level];
+		final int sourceX = sizeX_[source];
+		final int sizeX = sizeX_[level];
+		// source pixels past the last block of this level hold no image data
+		final int sourceWidth = Math.min(sourceX, sizeX * fx);
+		final int yEnd = Math.min(dsY1 * fy, sizeY_[source]);
+		for (int y = dsY0 * fy, dsRow = dsY0 * sizeX; y < yEnd; dsRow += sizeX) {
+			final int blockEnd = Math.min(y + fy, yEnd);
+			for (; y < blockEnd; y++) {
+				final int row = y * sourceX;
+				for (int x = 0, dsIndex = dsRow; x < sourceWidth; dsIndex++) {
+					final int xEnd = Math.min(x + fx, sourceWidth);
+					long val = 0;
+					for (; x < xEnd; x++) {
+						val += sourceSum[row + x];
+					}
+					sum[dsIndex] += val;
+				}
+			}
+		}
+	}
+
+	private void sumDoubles(final double[] sourceSum, final double[] sum,
+		final int source, final int level, final int dsY0, final int dsY1)
+	{
+		final int fx = relFactorX_[level], fy = relFactorY_[level];
+		final int sourceX = sizeX_[source];
+		final int sizeX = sizeX_[level];
+		final int sourceWidth = Math.min(sourceX, sizeX * fx);
+		final int yEnd = Math.min(dsY1 * fy, sizeY_[source]);
+		for (int y = dsY0 * fy, dsRow = dsY0 * sizeX; y < yEnd; dsRow += sizeX) {
+			final int blockEnd = Math.min(y + fy, yEnd);
+			for (; y < blockEnd; y++) {
+				final int row = y * sourceX;
+				for (int x = 0, dsIndex = dsRow; x < sourceWidth; dsIndex++) {
+					final int xEnd = Math.min(x + fx, sourceWidth);
+					double val = 0;
+					for (; x < xEnd; x++) {
+						val += sourceSum[row + x];
+					}
+					sum[dsIndex] += val;
+				}
+			}
+		}
+	}
+
+	// Blocks cropped by the image edge are left at 0
+	private void averageBytes(final long[] sum, final byte[] pixels,
+		final int level, final boolean zFull, final int dsY0, final int dsY1)
+	{
+		final int sizeX = sizeX_[level];
+		final int fullX = fullX_[level];
+		final int fullY = Math.min(dsY1, zFull ? fullY_[level] : 0);
+		final long divisor = divisor_[level];
+		for (int dsY = dsY0; dsY < fullY; dsY++) {
+			final int row = dsY * sizeX;
+			for (int dsX = 0; dsX < fullX; dsX++) {
+				pixels[row + dsX] = (byte) (sum[row + dsX] / divisor);
+			}
+			Arrays.fill(pixels, row + fullX, row + sizeX, (byte) 0);
+		}
+		Arrays.fill(pixels, Math.max(dsY0, fullY) * sizeX, dsY1 * sizeX, (byte) 0);
+	}
+
+	private void averageShorts(final long[] sum, final short[] pixels,
+		final int level, final boolean zFull, final int dsY0, final int dsY1)
+	{
+		final int sizeX = sizeX_[level];
+		final int fullX = fullX_[level];
+		final int fullY = Math.min(dsY1, zFull ? fullY_[level] : 0);
+		final long divisor = divisor_[level];
+		for (int dsY = dsY0; dsY < fullY; dsY++) {
+			final int row = dsY * sizeX;
+			for (int dsX = 0; dsX < fullX; dsX++) {
+				pixels[row + dsX] = (short) (sum[row + dsX] / divisor);
+			}
+			Arrays.fill(pixels, row + fullX, row + sizeX, (short) 0);
+		}
+		Arrays.fill(pixels, Math.max(dsY0, fullY) * sizeX, dsY1 * sizeX,
+			(short) 0);
+	}
+
+	private void averageInts(final long[] sum, final int[] pixels,
+		final int level, final boolean zFull, final int dsY0, final int dsY1)
+	{
+		final int sizeX = sizeX_[level];
+		final int fullX = fullX_[level];
+		final int fullY = Math.min(dsY1, zFull ? fullY_[level] : 0);
+		final long divisor = divisor_[level];
+		for (int dsY = dsY0; dsY < fullY; dsY++) {
+			final int row = dsY * sizeX;
+			for (int dsX = 0; dsX < fullX; dsX++) {
+				pixels[row + dsX] = (int) (sum[row + dsX] / divisor);
+			}
+			Arrays.fill(pixels, row + fullX, row + sizeX, 0);
+		}
+		Arrays.fill(pixels, Math.max(dsY0, fullY) * sizeX, dsY1 * sizeX, 0);
+	}
+
+	private void averageFloats(final double[] sum, final float[] pixels,
+		final int level, final boolean zFull, final int dsY0, final int dsY1)
+	{
+		final int sizeX = sizeX_[level];
+		final int fullX = fullX_[level];
+		final int fullY = Math.min(dsY1, zFull ? fullY_[level] : 0);
+		final double divisor = divisor_[level];
+		for (int dsY = dsY0; dsY < fullY; dsY++) {
+			final int row = dsY * sizeX;
+			for (int dsX = 0; dsX < fullX; dsX++) {
+				pixels[row + dsX] = (float) (sum[row + dsX] / divisor);
+			}
+			Arrays.fill(pixels, row + fullX, row + sizeX, 0);
+		}
+		Arrays.fill(pixels, Math.max(dsY0, fullY) * sizeX, dsY1 * sizeX, 0);
+	}
+
+	// Rows of one level built by a single task in parallel mode
+	private class RowBand implements Callable<Void> {
+
+		private final int level_, dsY0_, dsY1_;
+
+		public RowBand(final int level, final int dsY0, final int dsY1) {
+			level_ = level;
+			dsY0_ = dsY0;
+			dsY1_ = dsY1;
+		}
+
+		@Override
+		public Void call() {
+			buildRows(level_, dsY0_, dsY1_);
+			return null;
+		}
+	}
+}
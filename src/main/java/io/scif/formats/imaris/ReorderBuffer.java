@@ -0,0 +1,349 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Puts full resolution slices that arrive in any order back into the order
+ * the preprocessor needs: time points one after another and, within a time
+ * point, batches of consecutive slices of one channel. A batch is released as
+ * soon as all of its slices have arrived, its time point is being written and
+ * the earlier batches of its channel have been released. Slices waiting for
+ * the rest of their batch or for an earlier batch or time point are held in
+ * memory up to a budget; beyond that the slices needed last are moved to a
+ * scratch file.
+ */
+public class ReorderBuffer {
+
+	private final int numSlices_, numChannels_, batchSize_, numBatches_;
+	private final long sliceBytes_, memoryBudget_;
+	private final File scratchDirectory_;
+	// waiting slices by index in release order, and those of them in memory
+	private final TreeMap<Long, Entry> pending_ = new TreeMap<Long, Entry>();
+	private final TreeMap<Long, Entry> inMemory_ = new TreeMap<Long, Entry>();
+	// number of slices received for each batch that hasn't been released
+	private final HashMap<Long, Integer> batchCounts_ =
+		new HashMap<Long, Integer>();
+	private final List<PipelineImage> released_ = new ArrayList<PipelineImage>();
+	private int frame_ = 0;
+	private int frameBatchesReleased_ = 0;
+	// next batch of each channel of the current time point to be released
+	private final int[] nextBatch_;
+	private long memoryUsed_ = 0;
+	private File scratchFile_;
+	private RandomAccessFile scratch_;
+	private ByteBuffer scratchBuffer_;
+	private final ArrayDeque<Long> freeSlots_ = new ArrayDeque<Long>();
+	private long numSlots_ = 0;
+	// read by other threads
+	private volatile int numPending_ = 0;
+	private volatile int spilled_ = 0;
+
+	private static class Entry {
+
+		private final PipelineImage img;
+		// type of the pixel array, which 16 bit pixels given as bytes share with
+		// 8 bit pixels
+		private final ImarisPixelType arrayType;
+		private final int length;
+		// slot in the scratch file if the pixels have been spilled, otherwise -1
+		private long slot = -1;
+
+		private Entry(final PipelineImage img) {
+			this.img = img;
+			arrayType = ImarisPixelType.forArray(img.pixels);
+			length = Array.getLength(img.pixels);
+		}
+	}
+
+	/**
+	 * @param sliceBytes size of the pixels of one slice
+	 * @param memoryBudget number of bytes of waiting slices kept in memory
+	 * @param scratchDirectory directory of the scratch file, or null for the
+	 *          default temporary directory
+	 */
+	public ReorderBuffer(final int numSlices, final int numChannels,
+		final int batchSize, final long sliceBytes, final long memoryBudget,
+		final File scratchDirectory)
+	{
+		numSlices_ = numSlices;
+		numChannels_ = numChannels;
+		batchSize_ = batchSize;
+		numBatches_ = (numSlices + batchSize - 1) / batchSize;
+		sliceBytes_ = sliceBytes;
+		memoryBudget_ = memoryBudget;
+		scratchDirectory_ = scratchDirectory;
+		nextBatch_ = new int[numChannels];
+	}
+
+	/**
+	 * Sets the time point that is released first, when earlier ones have
+	 * already been written. Must be called before any slice is added.
+	 */
+	public void setFirstFrame(final int frame) {
+		frame_ = frame;
+	}
+
+	/**
+	 * Adds a slice and returns the slices that can now be preprocessed, in
+	 * order. The list is reused by the next call.
+	 *
+	 * @throws IllegalArgumentException if the slice has been added before
+	 */
+	public List<PipelineImage> add(final PipelineImage img) throws IOException {
+		released_.clear();
+		final int batch = img.slice / batchSize_;
+		final long batchIndex = batchIndex(img.frame, img.channel, batch);
+		final long index = sliceIndex(img.frame, img.channel, img.slice);
+		// slices of released batches are no longer pending
+		if (img.frame < frame_ || img.frame == frame_ &&
+			batch < nextBatch_[img.channel] || pending_.containsKey(index))
+		{
+			throw new IllegalArgumentException("Slice " + img.slice +
+				" of channel " + img.channel + " in time point " + img.frame +
+				" was added twice");
+		}
+		final Integer count = batchCounts_.get(batchIndex);
+		final int received = count == null ? 1 : count + 1;
+		final Entry entry = new Entry(img);
+		pending_.put(index, entry);
+		inMemory_.put(index, entry);
+		memoryUsed_ += sliceBytes_;
+
+		if (received < batchLength(batch)) {
+			batchCounts_.put(batchIndex, received);
+		}
+		else {
+			batchCounts_.remove(batchIndex);
+			if (img.frame == frame_ && batch == nextBatch_[img.channel]) {
+				final int frame = frame_;
+				releaseChannel(img.channel);
+				// later time points may have been waiting for this one
+				if (frame_ != frame) {
+					while (releaseFrame()) {}
+				}
+			}
+		}
+
+		while (memoryUsed_ > memoryBudget_ && !inMemory_.isEmpty()) {
+			spill(inMemory_.lastEntry().getValue());
+		}
+		numPending_ = pending_.size();
+		return released_;
+	}
+
+	/**
+	 * Gets the number of slices waiting for the rest of their batch or for an
+	 * earlier time point.
+	 */
+	public int getPendingCount() {
+		return numPending_;
+	}
+
+	/**
+	 * Gets the number of slices that have been moved to the scratch file.
+	 */
+	public int getSpilledCount() {
+		return spilled_;
+	}
+
+	/**
+	 * Drops any waiting slices and deletes the scratch file.
+	 */
+	public void close() throws IOException {
+		pending_.clear();
+		inMemory_.clear();
+		numPending_ = 0;
+		if (scratch_ != null) {
+			scratch_.close();
+			scratch_ = null;
+			scratchFile_.delete();
+		}
+	}
+
+	// Releases the complete batches of the current time point that are next in
+	// their channel. Returns true if that finished the time point
+	private boolean releaseFrame() throws IOException {
+		final int frame = frame_;
+		for (int c = 0; c < numChannels_ && frame_ == frame; c++) {
+			releaseChannel(c);
+		}
+		return frame_ != frame;
+	}
+
+	// Releases batches of a channel of the current time point in order, as
+	// long as the next one is complete
+	private void releaseChannel(final int channel) throws IOException {
+		final int frame = frame_;
+		while (frame_ == frame && nextBatch_[channel] < numBatches_ &&
+			isComplete(frame, channel, nextBatch_[channel]))
+		{
+			release(channel, nextBatch_[channel]);
+		}
+	}
+
+	// Batches still missing slices have a count
+	private boolean isComplete(final int frame, final int channel,
+		final int batch)
+	{
+		return pending_.containsKey(sliceIndex(frame, channel, batch *
+			batchSize_)) && !batchCounts_.containsKey(batchIndex(frame, channel,
+				batch));
+	}
+
+	private void release(final int channel, final int batch) throws IOException
+	{
+		final long first = sliceIndex(frame_, channel, batch * batchSize_);
+		for (int s = 0; s < batchLength(batch); s++) {
+			final Entry entry = pending_.remove(first + s);
+			if (entry.slot >= 0) {
+				restore(entry);
+			}
+			else {
+				inMemory_.remove(first + s);
+				memoryUsed_ -= sliceBytes_;
+			}
+			released_.add(entry.img);
+		}
+		nextBatch_[channel]++;
+		frameBatchesReleased_++;
+		if (frameBatchesReleased_ == numChannels_ * numBatches_) {
+			frame_++;
+			frameBatchesReleased_ = 0;
+			Arrays.fill(nextBatch_, 0);
+		}
+	}
+
+	private void spill(final Entry entry) throws IOException {
+		if (scratch_ == null) {
+			scratchFile_ =
+				File.createTempFile("imaris", ".reorder", scratchDirectory_);
+			scratchFile_.deleteOnExit();
+			scratch_ = new RandomAccessFile(scratchFile_, "rw");
+			scratchBuffer_ =
+				ByteBuffer.allocateDirect((int) sliceBytes_).order(ByteOrder
+					.nativeOrder());
+		}
+		final Long free = freeSlots_.pollFirst();
+		final long slot = free == null ? numSlots_++ : free;
+		final ByteBuffer buffer = prepare(entry);
+		switch (entry.arrayType) {
+			case FLOAT32:
+				buffer.asFloatBuffer().put((float[]) entry.img.pixels);
+				break;
+			case UINT32:
+				buffer.asIntBuffer().put((int[]) entry.img.pixels);
+				break;
+			case UINT16:
+				buffer.asShortBuffer().put((short[]) entry.img.pixels);
+				break;
+			default:
+				buffer.put((byte[]) entry.img.pixels).rewind();
+		}
+		final FileChannel channel = scratch_.getChannel();
+		long position = slot * sliceBytes_;
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		entry.slot = slot;
+		entry.img.pixels = null;
+		inMemory_.remove(sliceIndex(entry.img.frame, entry.img.channel,
+			entry.img.slice));
+		memoryUsed_ -= sliceBytes_;
+		spilled_++;
+	}
+
+	private void restore(final Entry entry) throws IOException {
+		final ByteBuffer buffer = prepare(entry);
+		final FileChannel channel = scratch_.getChannel();
+		long position = entry.slot * sliceBytes_;
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("Scratch file " + scratchFile_ +
+					" is truncated");
+			}
+			position += read;
+		}
+		buffer.rewind();
+		final Object pixels = entry.arrayType.newArray(entry.length);
+		switch (entry.arrayType) {
+			case FLOAT32:
+				buffer.asFloatBuffer().get((float[]) pixels);
+				break;
+			case UINT32:
+				buffer.asIntBuffer().get((int[]) pixels);
+				break;
+			case UINT16:
+				buffer.asShortBuffer().get((short[]) pixels);
+				break;
+			default:
+				buffer.get((byte[]) pixels);
+		}
+		entry.img.pixels = pixels;
+		freeSlots_.addFirst(entry.slot);
+		entry.slot = -1;
+	}
+
+	// Limits the scratch buffer to the pixels of a slice
+	private ByteBuffer prepare(final Entry entry) {
+		scratchBuffer_.clear();
+		scratchBuffer_.limit(entry.length * entry.arrayType.getByteDepth());
+		return scratchBuffer_;
+	}
+
+	private int batchLength(final int batch) {
+		return Math.min(batchSize_, numSlices_ - batch * batchSize_);
+	}
+
+	private long sliceIndex(final int frame, final int channel, final int slice)
+	{
+		return ((long) frame * numChannels_ + channel) * numSlices_ + slice;
+	}
+
+	private long batchIndex(final int frame, final int channel, final int batch)
+	{
+		return ((long) frame * numChannels_ + channel) * numBatches_ + batch;
+	}
+}
@@ -74,7 +74,7 @@ public class ResolutionLevel {
 		final long minBlockSizeX = 1, minBlockSizeY = 1, minBlockSizeZ = 1, minBlockSizeT =
 			1;
 		final long imageSizeXYZT =
-			imageSizeX_ * imageSizeY_ * imageSizeZ_ * imageSizeT_;
+			(long) imageSizeX_ * imageSizeY_ * imageSizeZ_ * imageSizeT_;
 
 		// compile a list of all possible layouts
 		final ArrayList<BlockLayoutCost> blockLayoutCosts =
@@ -229,8 +229,8 @@ public class ResolutionLevel {
 		public double costSlice, costGeometry, costMemory;
 	}
 
-	public int getImageNumBytes() {
-		return imageByteDepth_ * imageSizeX_ * imageSizeY_ * imageSizeZ_;
+	public long getImageNumBytes() {
+		return (long) imageByteDepth_ * imageSizeX_ * imageSizeY_ * imageSizeZ_;
 	}
 
 	public int getImageByteDepth() {
@@ -293,4 +293,17 @@ public class ResolutionLevel {
 		return reductionFactorZ_;
 	}
 
+	// Bytes in one Z block of chunks spanning the whole container in X and Y
+	public long getSlabNumBytes() {
+		return blockSizeZ_ * containerY_ * containerX_ * imageByteDepth_;
+	}
+
+	public long getChunkNumBytes() {
+		return blockSizeZ_ * blockSizeY_ * blockSizeX_ * imageByteDepth_;
+	}
+
+	public int getChunksPerSlab() {
+		return (int) ((containerY_ / blockSizeY_) * (containerX_ / blockSizeX_));
+	}
+
 }
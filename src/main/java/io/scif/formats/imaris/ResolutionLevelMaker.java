@@ -66,11 +66,14 @@ public class ResolutionLevelMaker {
 		if (resLevels.getLast().getImageNumBytes() > 4 * BYTES_PER_MB) {
 			int newX = imageSizeX, newY = imageSizeY, newZ = imageSizeZ;
 			final boolean reduceZ =
-				(10 * imageSizeZ) * (10 * imageSizeZ) > imageSizeX * imageSizeY;
+				(10L * imageSizeZ) * (10L * imageSizeZ) > (long) imageSizeX *
+					imageSizeY;
 			final boolean reduceY =
-				(10 * imageSizeY) * (10 * imageSizeY) > imageSizeX * imageSizeZ;
+				(10L * imageSizeY) * (10L * imageSizeY) > (long) imageSizeX *
+					imageSizeZ;
 			final boolean reduceX =
-				(10 * imageSizeX) * (10 * imageSizeX) > imageSizeY * imageSizeZ;
+				(10L * imageSizeX) * (10L * imageSizeX) > (long) imageSizeY *
+					imageSizeZ;
 			if (reduceZ) {
 				newZ = (int) Math.ceil(imageSizeZ / 2.0);
 			}
@@ -0,0 +1,187 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.awt.Color;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+import hdf.hdf5lib.exceptions.HDF5Exception;
+import hdf.hdf5lib.exceptions.HDF5LibraryException;
+
+/**
+ * Builds the thumbnail Imaris shows when browsing files: a maximum intensity
+ * projection of the first time point, colored like the channels. The
+ * projection is taken from the slices of the lowest resolution level as they
+ * are written, so it costs no extra pass over the data.
+ */
+public class Thumbnail {
+
+	public static final int SIZE = 256;
+	private final int width_, height_;
+	// maximum of each pixel over all slices, per channel. NaN until a slice has
+	// covered the pixel
+	private final double[][] max_;
+	private boolean empty_ = true;
+
+	/**
+	 * @param resLevel lowest resolution level
+	 */
+	public Thumbnail(final ResolutionLevel resLevel, final int numChannels) {
+		width_ = resLevel.getImageSizeX();
+		height_ = resLevel.getImageSizeY();
+		max_ = new double[numChannels][width_ * height_];
+		for (final double[] max : max_) {
+			Arrays.fill(max, Double.NaN);
+		}
+	}
+
+	/**
+	 * Adds a region of a slice of the lowest resolution level to the
+	 * projection.
+	 *
+	 * @param byteOrder order of 16 bit pixels given as bytes, null otherwise
+	 */
+	public void add(final int channel, final Object pixels,
+		final ByteOrder byteOrder, final int x, final int y, final int width,
+		final int height)
+	{
+		final double[] max = max_[channel];
+		empty_ = false;
+		for (int row = 0; row < height; row++) {
+			for (int col = 0; col < width; col++) {
+				final double value = getValue(pixels, byteOrder, row * width + col);
+				final int i = (y + row) * width_ + x + col;
+				// infinite and NaN floats are left out, as in the histogram
+				if (value - value == 0 && !(value <= max[i])) {
+					max[i] = value;
+				}
+			}
+		}
+	}
+
+	/** Returns true if no slice has been added. */
+	public boolean isEmpty() {
+		return empty_;
+	}
+
+	/**
+	 * Writes the thumbnail to /Thumbnail/Data as {@value #SIZE} rows of
+	 * {@value #SIZE} RGBA pixels. The projection is scaled to fit, keeping
+	 * its aspect ratio, and each channel is scaled by its display range.
+	 *
+	 * @param min lower end of the display range of each channel
+	 * @param max upper end of the display range of each channel
+	 */
+	public void write(final long fileID, final Color[] colors,
+		final double[] min, final double[] max) throws HDF5LibraryException,
+		HDF5Exception
+	{
+		final byte[] rgba = render(colors, min, max);
+		final long groupID =
+			H5.H5Gcreate(fileID, "/Thumbnail", HDF5Constants.H5P_DEFAULT,
+				HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT);
+		final long[] ids =
+			HDFUtils.createDataSet(groupID, "Data", new long[] { SIZE, SIZE * 4 },
+				HDF5Constants.H5T_NATIVE_UINT8);
+		H5.H5Dwrite(ids[2], HDF5Constants.H5T_NATIVE_UINT8,
+			HDF5Constants.H5S_ALL, HDF5Constants.H5S_ALL, HDF5Constants.H5P_DEFAULT,
+			rgba);
+		H5.H5Sclose(ids[0]);
+		H5.H5Tclose(ids[1]);
+		H5.H5Dclose(ids[2]);
+		H5.H5Gclose(groupID);
+	}
+
+	/** Returns the RGBA pixels {@link #write} stores, row by row. */
+	byte[] render(final Color[] colors, final double[] min, final double[] max) {
+		final byte[] rgba = new byte[SIZE * SIZE * 4];
+		final double scale = Math.min((double) SIZE / width_, (double) SIZE /
+			height_);
+		final int width = Math.max(1, (int) Math.round(width_ * scale));
+		final int height = Math.max(1, (int) Math.round(height_ * scale));
+		final int x0 = (SIZE - width) / 2, y0 = (SIZE - height) / 2;
+		final float[][] rgb = new float[max_.length][];
+		for (int c = 0; c < max_.length; c++) {
+			rgb[c] = colors[c % colors.length].getRGBColorComponents(null);
+		}
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				final int out = (y * SIZE + x) * 4;
+				rgba[out + 3] = (byte) 255;
+				if (x < x0 || x >= x0 + width || y < y0 || y >= y0 + height) {
+					continue;
+				}
+				final int i =
+					Math.min(height_ - 1, (int) ((y - y0) / scale)) * width_ +
+						Math.min(width_ - 1, (int) ((x - x0) / scale));
+				final double[] sum = new double[3];
+				for (int c = 0; c < max_.length; c++) {
+					final double value = max_[c][i];
+					if (Double.isNaN(value) || !(max[c] > min[c])) {
+						continue;
+					}
+					final double intensity =
+						Math.min(1, Math.max(0, (value - min[c]) / (max[c] - min[c])));
+					for (int b = 0; b < 3; b++) {
+						sum[b] += intensity * rgb[c][b];
+					}
+				}
+				for (int b = 0; b < 3; b++) {
+					rgba[out + b] = (byte) Math.round(255 * Math.min(1, sum[b]));
+				}
+			}
+		}
+		return rgba;
+	}
+
+	private double getValue(final Object pixels, final ByteOrder byteOrder,
+		final int i)
+	{
+		if (pixels instanceof float[]) {
+			return ((float[]) pixels)[i];
+		}
+		if (pixels instanceof int[]) {
+			return ((int[]) pixels)[i] & 0xffffffffL;
+		}
+		if (pixels instanceof short[]) {
+			return ((short[]) pixels)[i] & 0xffff;
+		}
+		final byte[] bytes = (byte[]) pixels;
+		if (byteOrder == null) {
+			return bytes[i] & 0xff;
+		}
+		return byteOrder == ByteOrder.LITTLE_ENDIAN ? (bytes[2 * i] & 0xff) |
+			(bytes[2 * i + 1] & 0xff) << 8 : (bytes[2 * i] & 0xff) << 8 |
+			(bytes[2 * i + 1] & 0xff);
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Builds one lower resolution level from tiles of full resolution slices
+ * that arrive in any order. Each chunk of the level is summed on its own and
+ * handed out as soon as every full resolution pixel it averages has been
+ * added. Until then it holds 8 bytes of sums for each of its pixels. If the
+ * level averages several full resolution slices into one, no block of a
+ * level slice is complete before the tiles of its last full resolution slice
+ * arrive, so a whole level slice of sums is held: 8 bytes times the X and Y
+ * size of the level. Otherwise only the blocks that the tiles in flight
+ * touch are held. Averages are the same as those of {@link PyramidBuilder}:
+ * blocks cropped by the image edge are left at 0.
+ * <p>
+ * The tiles themselves are written to the full resolution dataset as they
+ * arrive. With compression, its HDF5 chunk cache holds the rows of chunks
+ * that one tile spans, a Z block deep, across the width of the image. That
+ * and the chunk caches of the lower levels are bounded together by
+ * {@link ImarisWriterOptions#setChunkCache}.
+ * </p>
+ */
+public class TileAccumulator {
+
+	private final int fx_, fy_;
+	private final long divisor_;
+	private final int sizeX_, sizeY_, fullX_, fullY_;
+	private final int blockX_, blockY_, chunksX_, chunksY_;
+	private final HashMap<Long, Block> pending_ = new HashMap<Long, Block>();
+	private final List<Block> completed_ = new ArrayList<Block>();
+
+	/**
+	 * A region of one slice of the level, covering one chunk in X and Y.
+	 */
+	public static class Block {
+
+		public final int slice, x, y, width, height;
+		// number of full resolution pixels (times their weight) still missing
+		private long missing_;
+		// sums of integer or floating point pixels
+		private long[] sums_;
+		private double[] floatSums_;
+		/** Averaged pixels, set once the block is complete. */
+		public Object pixels;
+
+		private Block(final int slice, final int x, final int y, final int width,
+			final int height, final boolean floats)
+		{
+			this.slice = slice;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			if (floats) {
+				floatSums_ = new double[width * height];
+			}
+			else {
+				sums_ = new long[width * height];
+			}
+		}
+	}
+
+	public TileAccumulator(final ResolutionLevel resLevel, final int baseWidth,
+		final int baseHeight)
+	{
+		fx_ = resLevel.getReductionFactorX();
+		fy_ = resLevel.getReductionFactorY();
+		divisor_ = (long) fx_ * fy_ * resLevel.getReductionFactorZ();
+		sizeX_ = resLevel.getImageSizeX();
+		sizeY_ = resLevel.getImageSizeY();
+		fullX_ = baseWidth / fx_;
+		fullY_ = baseHeight / fy_;
+		blockX_ = resLevel.getXBlockSize();
+		blockY_ = resLevel.getYBlockSize();
+		chunksX_ = (sizeX_ + blockX_ - 1) / blockX_;
+		chunksY_ = (sizeY_ + blockY_ - 1) / blockY_;
+	}
+
+	/**
+	 * Adds a tile of a full resolution slice to one slice of this level.
+	 *
+	 * @param pixels {@code byte[]}, {@code short[]}, {@code int[]} (unsigned 32
+	 *          bit) or {@code float[]} tile pixels, row by row
+	 * @param byteOrder order of the bytes of 16 bit pixels given as
+	 *          {@code byte[]}, or null
+	 * @param slice slice of this level the tile is averaged into
+	 * @param weight number of times the tile is counted. Dummy slices padding
+	 *          out the last batch of a stack are copies of an earlier slice,
+	 *          which is added once for itself and once for each copy.
+	 * @return blocks completed by this tile. The list is reused by the next
+	 *         call.
+	 */
+	public List<Block> add(final Object pixels, final ByteOrder byteOrder,
+		final int tileX, final int tileY, final int tileWidth,
+		final int tileHeight, final int slice, final int weight)
+	{
+		final ImarisPixelType pixelType =
+			byteOrder != null ? ImarisPixelType.UINT16 : ImarisPixelType
+				.forArray(pixels);
+		completed_.clear();
+		// full resolution pixels that fall in a block that isn't cropped
+		final int x1 = Math.min(tileX + tileWidth, fullX_ * fx_);
+		final int y1 = Math.min(tileY + tileHeight, fullY_ * fy_);
+		if (tileX >= x1 || tileY >= y1) {
+			return completed_;
+		}
+
+		for (int cy = tileY / fy_ / blockY_; cy <= (y1 - 1) / fy_ / blockY_; cy++)
+		{
+			for (int cx = tileX / fx_ / blockX_; cx <= (x1 - 1) / fx_ / blockX_; cx++)
+			{
+				final Block block =
+					getBlock(slice, cx, cy, pixelType.isFloatingPoint());
+				final int bx0 = Math.max(tileX, block.x * fx_);
+				final int bx1 = Math.min(x1, (block.x + block.width) * fx_);
+				final int by0 = Math.max(tileY, block.y * fy_);
+				final int by1 = Math.min(y1, (block.y + block.height) * fy_);
+				if (pixels instanceof float[]) {
+					sumFloats((float[]) pixels, tileX, tileY, tileWidth, block, bx0,
+						bx1, by0, by1, weight);
+				}
+				else if (pixels instanceof int[]) {
+					sumInts((int[]) pixels, tileX, tileY, tileWidth, block, bx0, bx1,
+						by0, by1, weight);
+				}
+				else if (pixels instanceof short[]) {
+					sumShorts((short[]) pixels, tileX, tileY, tileWidth, block, bx0,
+						bx1, by0, by1, weight);
+				}
+				else if (byteOrder != null) {
+					sumPackedShorts((byte[]) pixels,
+						byteOrder == ByteOrder.LITTLE_ENDIAN, tileX, tileY, tileWidth,
+						block, bx0, bx1, by0, by1, weight);
+				}
+				else {
+					sumBytes((byte[]) pixels, tileX, tileY, tileWidth, block, bx0, bx1,
+						by0, by1, weight);
+				}
+				block.missing_ -= (long) (bx1 - bx0) * (by1 - by0) * weight;
+				if (block.missing_ == 0) {
+					average(block, pixelType);
+					pending_.remove(key(slice, cx, cy));
+					completed_.add(block);
+				}
+			}
+		}
+		return completed_;
+	}
+
+	/**
+	 * Gets the number of blocks that have been started but not completed.
+	 */
+	public int getPendingCount() {
+		return pending_.size();
+	}
+
+	/**
+	 * Discards the blocks that have been started but not completed, which are
+	 * left only if tiles are missing.
+	 *
+	 * @return the number of blocks discarded
+	 */
+	public int close() {
+		final int pending = pending_.size();
+		pending_.clear();
+		completed_.clear();
+		return pending;
+	}
+
+	private long key(final int slice, final int cx, final int cy) {
+		return ((long) slice * chunksY_ + cy) * chunksX_ + cx;
+	}
+
+	private Block getBlock(final int slice, final int cx, final int cy,
+		final boolean floats)
+	{
+		final long key = key(slice, cx, cy);
+		Block block = pending_.get(key);
+		if (block == null) {
+			final int x = cx * blockX_, y = cy * blockY_;
+			block =
+				new Block(slice, x, y, Math.min(blockX_, sizeX_ - x), Math.min(blockY_,
+					sizeY_ - y), floats);
+			block.missing_ =
+				(long) (Math.min(x + block.width, fullX_) - x) *
+					(Math.min(y + block.height, fullY_) - y) * divisor_;
+			pending_.put(key, block);
+		}
+		return block;
+	}
+
+	private void sumBytes(final byte[] pixels, final int tileX, final int tileY,
+		final int tileWidth, final Block block, final int bx0, final int bx1,
+		final int by0, final int by1, final int weight)
+	{
+		final long[] sums = block.sums_;
+		for (int y = by0; y < by1; y++) {
+			final int row = (y - tileY) * tileWidth - tileX;
+			final int dsRow = (y / fy_ - block.y) * block.width - block.x;
+			for (int x = bx0; x < bx1;) {
+				final int dsX = x / fx_;
+				final int xEnd = Math.min(bx1, (dsX + 1) * fx_);
+				long val = 0;
+				for (; x < xEnd; x++) {
+					val += pixels[row + x] & 0xff;
+				}
+				sums[dsRow + dsX] += val * weight;
+			}
+		}
+	}
+
+	private void sumShorts(final short[] pixels, final int tileX,
+		final int tileY, final int tileWidth, final Block block, final int bx0,
+		final int bx1, final int by0, final int by1, final int weight)
+	{
+		final long[] sums = block.sums_;
+		for (int y = by0; y < by1; y++) {
+			final int row = (y - tileY) * tileWidth - tileX;
+			final int dsRow = (y / fy_ - block.y) * block.width - block.x;
+			for (int x = bx0; x < bx1;) {
+				final int dsX = x / fx_;
+				final int xEnd = Math.min(bx1, (dsX + 1) * fx_);
+				long val = 0;
+				for (; x < xEnd; x++) {
+					val += pixels[row + x] & 0xffff;
+				}
+				sums[dsRow + dsX] += val * weight;
+			}
+		}
+	}
+
+	// unsigned 32 bit pixels
+	private void sumInts(final int[] pixels, final int tileX, final int tileY,
+		final int tileWidth, final Block block, final int bx0, final int bx1,
+		final int by0, final int by1, final int weight)
+	{
+		final long[] sums = block.sums_;
+		for (int y = by0; y < by1; y++) {
+			final int row = (y - tileY) * tileWidth - tileX;
+			final int dsRow = (y / fy_ - block.y) * block.width - block.x;
+			for (int x = bx0; x < bx1;) {
+				final int dsX = x / fx_;
+				final int xEnd = Math.min(bx1, (dsX + 1) * fx_);
+				long val = 0;
+				for (; x < xEnd; x++) {
+					val += pixels[row + x] & 0xffffffffL;
+				}
+				sums[dsRow + dsX] += val * weight;
+			}
+		}
+	}
+
+	private void sumFloats(final float[] pixels, final int tileX,
+		final int tileY, final int tileWidth, final Block block, final int bx0,
+		final int bx1, final int by0, final int by1, final int weight)
+	{
+		final double[] sums = block.floatSums_;
+		for (int y = by0; y < by1; y++) {
+			final int row = (y - tileY) * tileWidth - tileX;
+			final int dsRow = (y / fy_ - block.y) * block.width - block.x;
+			for (int x = bx0; x < bx1;) {
+				final int dsX = x / fx_;
+				final int xEnd = Math.min(bx1, (dsX + 1) * fx_);
+				double val = 0;
+				for (; x < xEnd; x++) {
+					val += pixels[row + x];
+				}
+				sums[dsRow + dsX] += val * weight;
+			}
+		}
+	}
+
+	// 16 bit pixels stored as two bytes each
+	private void sumPackedShorts(final byte[] pixels,
+		final boolean littleEndian, final int tileX, final int tileY,
+		final int tileWidth, final Block block, final int bx0, final int bx1,
+		final int by0, final int by1, final int weight)
+	{
+		final long[] sums = block.sums_;
+		// offsets of the low and high byte of a pixel
+		final int lo = littleEndian ? 0 : 1, hi = 1 - lo;
+		for (int y = by0; y < by1; y++) {
+			final int row = (y - tileY) * tileWidth - tileX;
+			final int dsRow = (y / fy_ - block.y) * block.width - block.x;
+			for (int x = bx0; x < bx1;) {
+				final int dsX = x / fx_;
+				final int xEnd = Math.min(bx1, (dsX + 1) * fx_);
+				long val = 0;
+				for (int i = 2 * (row + x); x < xEnd; x++, i += 2) {
+					val += (pixels[i + lo] & 0xff) | (pixels[i + hi] & 0xff) << 8;
+				}
+				sums[dsRow + dsX] += val * weight;
+			}
+		}
+	}
+
+	// Pixels of blocks cropped by the image edge were never summed and stay 0
+	private void average(final Block block, final ImarisPixelType pixelType) {
+		switch (pixelType) {
+			case FLOAT32: {
+				final double[] sums = block.floatSums_;
+				final float[] pixels = new float[sums.length];
+				for (int i = 0; i < sums.length; i++) {
+					pixels[i] = (float) (sums[i] / divisor_);
+				}
+				block.pixels = pixels;
+				break;
+			}
+			case UINT32: {
+				final long[] sums = block.sums_;
+				final int[] pixels = new int[sums.length];
+				for (int i = 0; i < sums.length; i++) {
+					pixels[i] = (int) (sums[i] / divisor_);
+				}
+				block.pixels = pixels;
+				break;
+			}
+			case UINT16: {
+				final long[] sums = block.sums_;
+				final short[] pixels = new short[sums.length];
+				for (int i = 0; i < sums.length; i++) {
+					pixels[i] = (short) (sums[i] / divisor_);
+				}
+				block.pixels = pixels;
+				break;
+			}
+			default: {
+				final long[] sums = block.sums_;
+				final byte[] pixels = new byte[sums.length];
+				for (int i = 0; i < sums.length; i++) {
+					pixels[i] = (byte) (sums[i] / divisor_);
+				}
+				block.pixels = pixels;
+			}
+		}
+		block.sums_ = null;
+		block.floatSums_ = null;
+	}
+}
@@ -30,6 +30,9 @@
 package io.scif.formats.imaris;
 
 //This class encapsulates all the data object IDs for a given timepoint
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 import javax.swing.JOptionPane;
 
 import hdf.hdf5lib.H5;
@@ -40,17 +43,64 @@ import hdf.hdf5lib.exceptions.HDF5LibraryException;
 public class TimePoint {
 
 	private static final int HISTOGRAM_SIZE = 256;
+	// one bin per value, for 16 bit data only
+	private static final int FULL_HISTOGRAM_SIZE = 65536;
 	private final ResolutionLevel[] resLevels_;
 	// res index, channel index array of channel Groups
 	private final ChannelGroup[][] channelGroups_;
-	private final boolean compressImageData_;
+	private final ImarisCompression compression_;
+	private final boolean fullHistogram_;
+	private final boolean stackSlices_;
+	// height of the full resolution tiles written, or 0 for whole slices
+	private final int tileHeight_;
+	// share of its wanted chunk cache each image dataset gets
+	private final double cacheScale_;
+	// projection the slices of the lowest resolution level are added to, if
+	// this time point is shown in the thumbnail
+	private final Thumbnail thumbnail_;
+	private final ImarisWriterMetrics metrics_;
+	private final int frameIndex_;
 
 	// Constructor creates all data structures that are populated later
 	public TimePoint(final ResolutionLevel[] resLevels, final long[] resLevelIDs_,
 		final int numChannels, final int frameIndex, final int bitDepth,
 		final boolean compressImageData) throws HDF5LibraryException, HDF5Exception
 	{
-		compressImageData_ = compressImageData;
+		this(resLevels, resLevelIDs_, numChannels, frameIndex, ImarisPixelType
+			.fromBitDepth(bitDepth), bitDepth, compressImageData
+				? ImarisCompression.DEFAULT : ImarisCompression.NONE, false, false,
+			(long) new ImarisWriterOptions().getChunkCache() * 1048576, 0, null,
+			new ImarisWriterMetrics(resLevels.length, 1));
+	}
+
+	// With fullHistogram, 16 bit data also gets a histogram with a bin for every
+	// value at full resolution. With stackSlices, other slices are collected
+	// into whole Z blocks before they are written. The chunk caches of all
+	// image datasets together are kept to chunkCacheBytes, but hold at least
+	// one chunk each. With a tileHeight, full resolution slices are written as
+	// tiles of that height. With a thumbnail, the lowest resolution level is
+	// projected into it. Writes and the bytes stored are added to metrics
+	public TimePoint(final ResolutionLevel[] resLevels, final long[] resLevelIDs_,
+		final int numChannels, final int frameIndex,
+		final ImarisPixelType pixelType, final int bitDepth,
+		final ImarisCompression compression, final boolean fullHistogram,
+		final boolean stackSlices, final long chunkCacheBytes,
+		final int tileHeight, final Thumbnail thumbnail,
+		final ImarisWriterMetrics metrics) throws HDF5LibraryException,
+		HDF5Exception
+	{
+		thumbnail_ = thumbnail;
+		metrics_ = metrics;
+		frameIndex_ = frameIndex;
+		compression_ = compression;
+		fullHistogram_ = fullHistogram && pixelType == ImarisPixelType.UINT16;
+		stackSlices_ = stackSlices;
+		tileHeight_ = tileHeight;
+		long cacheBytes = 0;
+		for (final ResolutionLevel resLevel : resLevels) {
+			cacheBytes += numChannels * getCacheBytes(resLevel);
+		}
+		cacheScale_ = Math.min(1, (double) chunkCacheBytes / cacheBytes);
 		resLevels_ = resLevels;
 		channelGroups_ = new ChannelGroup[resLevels.length][numChannels];
 
@@ -64,12 +114,28 @@ public class TimePoint {
 			final ResolutionLevel resLevel = resLevels[resIndex];
 			for (int channelIndex = 0; channelIndex < numChannels; channelIndex++) {
 				channelGroups_[resIndex][channelIndex] =
-					new ChannelGroup(timePointID, channelIndex, resLevel, bitDepth);
+					new ChannelGroup(timePointID, channelIndex, resLevel, pixelType,
+						bitDepth);
 			}
 			H5.H5Gclose(timePointID);
 		}
 	}
 
+	// Bytes of chunk cache an image dataset of a level needs for each chunk
+	// to be compressed once: a whole Z block of chunks, or at full resolution
+	// on the tile path, the rows of chunks that a tile spans
+	private long getCacheBytes(final ResolutionLevel resLevel) {
+		final long slabBytes = resLevel.getSlabNumBytes();
+		if (tileHeight_ == 0 || resLevel.getIndex() > 0) {
+			return slabBytes;
+		}
+		final int blockY = resLevel.getYBlockSize();
+		final long rowsPerSlab = resLevel.getContainerSizeY() / blockY;
+		final long rows =
+			Math.min(rowsPerSlab, (tileHeight_ + blockY - 2) / blockY + 1);
+		return slabBytes / rowsPerSlab * rows;
+	}
+
 	// should be called by the addImage function of the HDFWriter
 	public void writePixels(final PipelineImage img) throws Exception {
 		// This function recieves several slices processed into multiple
@@ -84,9 +150,9 @@ public class TimePoint {
 		final Object[][] imageData = (Object[][]) img.pixels;
 
 		for (int resIndex = 0; resIndex < resLevels_.length; resIndex++) {
-			// write histogram if last slice in channel
-			if (img.histograms != null) {
-				channelGroups_[resIndex][channel].writeHistogram(img, resIndex);
+			// keep histogram if last slice in channel
+			if (img.histogram != null) {
+				channelGroups_[resIndex][channel].setHistogram(img, resIndex);
 			}
 
 			final Object[] sliceArray = imageData[resIndex];
@@ -96,43 +162,126 @@ public class TimePoint {
 					final int dataSlice =
 						(img.slice + sliceIndex) /
 							resLevels_[resIndex].getReductionFactorZ();
-					channelGroups_[resIndex][channel].writeSlice(resLevels_[resIndex]
-						.getImageSizeX(), resLevels_[resIndex].getImageSizeY(), dataSlice,
-						sliceArray[sliceIndex]);
+					// lower levels are always held in arrays of their own type
+					final ByteOrder byteOrder = resIndex == 0 ? img.byteOrder : null;
+					channelGroups_[resIndex][channel].writeSlice(dataSlice,
+						sliceArray[sliceIndex], byteOrder);
+					if (thumbnail_ != null && resIndex == resLevels_.length - 1) {
+						thumbnail_.add(channel, sliceArray[sliceIndex], byteOrder, 0, 0,
+							resLevels_[resIndex].getImageSizeX(), resLevels_[resIndex]
+								.getImageSizeY());
+					}
+				}
+			}
+		}
+	}
+
+	// Writes a tile of a full resolution slice and adds it to the lower
+	// resolution levels
+	public void writeTile(final PipelineImage tile) throws Exception {
+		final int numSlices = resLevels_[0].getImageSizeZ();
+		final int batchSize =
+			resLevels_[resLevels_.length - 1].getReductionFactorZ();
+		// the last batch of a stack is padded with copies of its first slice
+		final int lastBatch = (numSlices - 1) / batchSize * batchSize;
+		final int paddedSlices = lastBatch + batchSize;
+
+		for (int resIndex = 0; resIndex < resLevels_.length; resIndex++) {
+			final ChannelGroup group = channelGroups_[resIndex][tile.channel];
+			if (tile.histogram != null) {
+				group.setHistogram(tile, resIndex);
+			}
+			if (resIndex == 0) {
+				group.write(tile.slice, tile.y, tile.x, 1, tile.height, tile.width,
+					tile.pixels, tile.byteOrder);
+				if (thumbnail_ != null && resLevels_.length == 1) {
+					thumbnail_.add(tile.channel, tile.pixels, tile.byteOrder, tile.x,
+						tile.y, tile.width, tile.height);
+				}
+				continue;
+			}
+
+			final int fz = resLevels_[resIndex].getReductionFactorZ();
+			final int slice = tile.slice / fz;
+			if (tile.slice != lastBatch) {
+				group.addTile(tile, slice, 1);
+				continue;
+			}
+			// count the tile once for each slice of this level it is copied into
+			final int[] weights = new int[(paddedSlices - 1) / fz - slice + 1];
+			weights[0] = 1;
+			for (int s = numSlices; s < paddedSlices; s++) {
+				weights[s / fz - slice]++;
+			}
+			for (int i = 0; i < weights.length; i++) {
+				if (weights[i] > 0 &&
+					slice + i < resLevels_[resIndex].getContainerSizeZ())
+				{
+					group.addTile(tile, slice + i, weights[i]);
 				}
 			}
 		}
 	}
 
-	// Close channel Group
+	public int getFrameIndex() {
+		return frameIndex_;
+	}
+
+	// Close channel Group. Complete channels whose tiles didn't cover every
+	// slice are reported once all groups are closed
 	public void closeTimePoint() throws HDF5LibraryException, HDF5Exception {
+		long missing = 0;
 		for (int res = 0; res < channelGroups_.length; res++) {
 			for (int channel = 0; channel < channelGroups_[0].length; channel++) {
-				channelGroups_[res][channel].close();
+				missing += channelGroups_[res][channel].close();
 			}
 		}
+		if (missing > 0) {
+			throw new IllegalStateException("Time point " + frameIndex_ + " has " +
+				missing + " blocks that were missing tiles");
+		}
 	}
 
 	private class ChannelGroup {
 
 		private final ResolutionLevel resLevel_;
-		private long[] histogramIDs_;
+		private final int channelIndex_;
+		private final ImarisPixelType pixelType_;
+		private final int bitDepth_;
+		// open until the histogram and its range have been written
+		private long groupID_;
+		private long[] histogramIDs_, fullHistogramIDs_;
+		// Written after the image data when the group is closed, so a written
+		// histogram marks a complete channel
+		private Histogram histogram_;
+		private String histogramSource_;
 		private long[] imageDataIDs_;
+		private final long[] start_ = new long[3];
+		private final long[] count_ = new long[3];
+		// If enabled, slices of one Z block are collected in stack_,
+		// so that every chunk is written once rather than once for each slice
+		private final boolean stackSlices_;
+		private Object stack_;
+		private ByteOrder stackOrder_;
+		private int stackIndex_ = -1, stackDepth_;
+		// lower resolution level being built from tiles, created by the first tile
+		private TileAccumulator accumulator_;
 
 		public ChannelGroup(final long timePointID, final int channelIndex,
-			final ResolutionLevel resLevel, final int bitDepth)
-			throws HDF5LibraryException, HDF5Exception
+			final ResolutionLevel resLevel, final ImarisPixelType pixelType,
+			final int bitDepth) throws HDF5LibraryException, HDF5Exception
 		{
 			resLevel_ = resLevel;
+			channelIndex_ = channelIndex;
+			pixelType_ = pixelType;
+			bitDepth_ = bitDepth;
 			final long id =
 				H5.H5Gcreate(timePointID, "Channel " + channelIndex,
 					HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT,
 					HDF5Constants.H5P_DEFAULT);
-			// Add channel attributes, image data, histogram
-			HDFUtils.writeStringAttribute(id, "HistogramMax", ((int) Math.pow(2,
-				bitDepth) - 1) +
-				".000");
-			HDFUtils.writeStringAttribute(id, "HistogramMin", "0.000");
+			groupID_ = id;
+			// Add channel attributes, image data, histogram. The histogram range
+			// is added with the histogram
 			HDFUtils.writeStringAttribute(id, "ImageBlockSizeX", "" +
 				resLevel_.getXBlockSize());
 			HDFUtils.writeStringAttribute(id, "ImageBlockSizeY", "" +
@@ -150,93 +299,293 @@ public class TimePoint {
 			histogramIDs_ =
 				HDFUtils.createDataSet(id, "Histogram", new long[] { HISTOGRAM_SIZE },
 					HDF5Constants.H5T_NATIVE_UINT64);
+			if (fullHistogram_ && resLevel.getIndex() == 0) {
+				fullHistogramIDs_ =
+					HDFUtils.createDataSet(id, "Histogram" + FULL_HISTOGRAM_SIZE,
+						new long[] { FULL_HISTOGRAM_SIZE },
+						HDF5Constants.H5T_NATIVE_UINT64);
+			}
 
 			// Create image datasets
-			if (compressImageData_) {
+			if (compression_.isCompressed()) {
+				final long chunkBytes = resLevel.getChunkNumBytes();
+				final long cacheBytes =
+					Math.max(chunkBytes, (long) (cacheScale_ * getCacheBytes(
+						resLevel)));
 				imageDataIDs_ =
 					HDFUtils.createCompressedDataSet(id, "Data", new long[] {
 						resLevel.getContainerSizeZ(), resLevel.getContainerSizeY(),
-						resLevel.getContainerSizeX() }, resLevel.getImageByteDepth() == 1
-						? HDF5Constants.H5T_NATIVE_UCHAR : HDF5Constants.H5T_NATIVE_UINT16,
+						resLevel.getContainerSizeX() }, pixelType.getDataType(),
 						new long[] { resLevel.getZBlockSize(), resLevel.getYBlockSize(),
-							resLevel.getXBlockSize() });
+							resLevel.getXBlockSize() }, compression_, cacheBytes, HDFUtils
+							.chunkCacheSlots((int) (cacheBytes / chunkBytes)));
 			}
 			else {
 				imageDataIDs_ =
 					HDFUtils.createDataSet(id, "Data", new long[] {
 						resLevel.getContainerSizeZ(), resLevel.getContainerSizeY(),
-						resLevel.getContainerSizeX() }, resLevel.getImageByteDepth() == 1
-						? HDF5Constants.H5T_NATIVE_UCHAR : HDF5Constants.H5T_NATIVE_UINT16);
+						resLevel.getContainerSizeX() }, pixelType.getDataType());
 			}
 
-			H5.H5Gclose(id);
+			// stacks must fit in an array
+			stackSlices_ =
+				TimePoint.this.stackSlices_ &&
+					resLevel.getSlabNumBytes() < Integer.MAX_VALUE - 8;
 		}
 
-		private void writeHistogram(final PipelineImage img, final int resIndex)
-			throws HDF5LibraryException, HDF5Exception
+		private void setHistogram(final PipelineImage img, final int resIndex) {
+			histogram_ = img.histogram;
+			histogramSource_ =
+				"channel " + img.channel + " slice: " + img.slice + " frame: " +
+					img.frame + " resIndex: " + resIndex;
+		}
+
+		private void writeHistogram() throws HDF5LibraryException, HDF5Exception
 		{
-//         Write and close histogram
-			final long memDataSpaceID =
-				H5.H5Screate_simple(1, new long[] { HISTOGRAM_SIZE }, null);
+//         Write and close histogram. Its bins span the values in the data
+			final Histogram histogram = histogram_;
+			histogram_ = null;
+			final Object event =
+				ImarisEvents.begin(ImarisEvents.Type.WRITE_HISTOGRAM);
+			writeHistogramRange(histogram.getMin(), histogram.getMax());
 			try {
-				final long[] histogram = img.histograms[resIndex];
-				H5.H5Dwrite_long(histogramIDs_[2], histogramIDs_[1], memDataSpaceID,
-					histogramIDs_[0], HDF5Constants.H5P_DEFAULT, histogram);
+				writeLongs(histogramIDs_, histogram.getBins(HISTOGRAM_SIZE));
+				if (fullHistogramIDs_ != null) {
+					writeLongs(fullHistogramIDs_, histogram.getCounts());
+				}
+				ImarisEvents.commit(event, channelIndex_, -1, frameIndex_, resLevel_
+					.getIndex(), 8L * (fullHistogramIDs_ != null ? HISTOGRAM_SIZE +
+						FULL_HISTOGRAM_SIZE : HISTOGRAM_SIZE));
 			}
 			catch (final Exception e) {
-				JOptionPane.showMessageDialog(null,
-					"Couldn't write histogram: channel " + img.channel + " slice: " +
-						img.slice + " frame: " + img.frame + " resIndex: " + resIndex);
+				JOptionPane.showMessageDialog(null, "Couldn't write histogram: " +
+					histogramSource_);
 			}
-			H5.H5Sclose(memDataSpaceID);
 			closeHistograms();
-			histogramIDs_ = null;
+		}
+
+		private void writeLongs(final long[] dataSetIDs, final long[] values)
+			throws HDF5LibraryException, HDF5Exception
+		{
+			final long memDataSpaceID =
+				H5.H5Screate_simple(1, new long[] { values.length }, null);
+			try {
+				H5.H5Dwrite_long(dataSetIDs[2], dataSetIDs[1], memDataSpaceID,
+					dataSetIDs[0], HDF5Constants.H5P_DEFAULT, values);
+			}
+			finally {
+				H5.H5Sclose(memDataSpaceID);
+			}
+		}
+
+		private void writeHistogramRange(final double min, final double max)
+			throws HDF5LibraryException, HDF5Exception
+		{
+			HDFUtils.writeStringAttribute(groupID_, "HistogramMax", format(max));
+			HDFUtils.writeStringAttribute(groupID_, "HistogramMin", format(min));
+			H5.H5Gclose(groupID_);
+			groupID_ = -1;
+		}
+
+		private String format(final double value) {
+			return pixelType_.isFloatingPoint() ? Float.toString((float) value)
+				: (long) value + ".000";
 		}
 
 		private void closeHistograms() throws HDF5LibraryException {
 			H5.H5Sclose(histogramIDs_[0]);
 			H5.H5Tclose(histogramIDs_[1]);
 			H5.H5Dclose(histogramIDs_[2]);
+			histogramIDs_ = null;
+			if (fullHistogramIDs_ != null) {
+				H5.H5Sclose(fullHistogramIDs_[0]);
+				H5.H5Tclose(fullHistogramIDs_[1]);
+				H5.H5Dclose(fullHistogramIDs_[2]);
+				fullHistogramIDs_ = null;
+			}
 		}
 
-		private void close() throws HDF5LibraryException, HDF5Exception {
-			if (histogramIDs_ != null) {
-				// if writing cancelled
-				closeHistograms();
-			}
+		// Returns the number of blocks of a complete channel that were never
+		// completed by tiles
+		private int close() throws HDF5LibraryException, HDF5Exception {
+			flushStack();
+			stack_ = null;
+			final int pending = accumulator_ != null ? accumulator_.close() : 0;
+			accumulator_ = null;
+			final int missing = histogram_ != null ? pending : 0;
 
 			// Close image data
 			H5.H5Sclose(imageDataIDs_[0]);
 			H5.H5Tclose(imageDataIDs_[1]);
 			H5.H5Dclose(imageDataIDs_[2]);
-			if (compressImageData_) {
+			if (compression_.isCompressed()) {
 				H5.H5Pclose(imageDataIDs_[3]);
 			}
 			imageDataIDs_ = null;
 
+			if (histogram_ != null) {
+				addBytes();
+				writeHistogram();
+			}
+			else if (histogramIDs_ != null) {
+				// if writing cancelled
+				writeHistogramRange(0, pixelType_.getDefaultMax(bitDepth_));
+				closeHistograms();
+			}
+			return missing;
+		}
+
+		// Adds the image data of a complete channel to the metrics. Chunks only
+		// have their final size once the dataset is closed
+		private void addBytes() throws HDF5LibraryException {
+			final long dataSetID =
+				H5.H5Dopen(groupID_, "Data", HDF5Constants.H5P_DEFAULT);
+			try {
+				final long bytesIn =
+					(long) resLevel_.getImageSizeX() * resLevel_.getImageSizeY() *
+						resLevel_.getImageSizeZ() * resLevel_.getImageByteDepth();
+				metrics_.addBytes(resLevel_.getIndex(), bytesIn, H5
+					.H5Dget_storage_size(dataSetID));
+			}
+			finally {
+				H5.H5Dclose(dataSetID);
+			}
+		}
+
+		// byteOrder is the order of 16 bit pixels given as byte[], or null
+		private void writeSlice(final int dataSlice, final Object pixels,
+			final ByteOrder byteOrder) throws Exception
+		{
+			final Object event = ImarisEvents.begin(ImarisEvents.Type.WRITE_SLICE);
+			if (stackSlices_) {
+				stackSlice(dataSlice, pixels, byteOrder);
+			}
+			else {
+				write(dataSlice, 0, 0, 1, resLevel_.getImageSizeY(), resLevel_
+					.getImageSizeX(), pixels, byteOrder);
+			}
+			ImarisEvents.commit(event, channelIndex_, dataSlice, frameIndex_,
+				resLevel_.getIndex(), (long) resLevel_.getImageSizeX() *
+					resLevel_.getImageSizeY() * resLevel_.getImageByteDepth());
+		}
+
+		// Adds a full resolution tile to this level and writes the regions it
+		// completes
+		private void addTile(final PipelineImage tile, final int slice,
+			final int weight) throws HDF5Exception
+		{
+			if (accumulator_ == null) {
+				accumulator_ =
+					new TileAccumulator(resLevel_, resLevels_[0].getImageSizeX(),
+						resLevels_[0].getImageSizeY());
+			}
+			for (final TileAccumulator.Block block : accumulator_.add(tile.pixels,
+				tile.byteOrder, tile.x, tile.y, tile.width, tile.height, slice, weight))
+			{
+				write(block.slice, block.y, block.x, 1, block.height, block.width,
+					block.pixels, null);
+				if (thumbnail_ != null &&
+					resLevel_.getIndex() == resLevels_.length - 1)
+				{
+					thumbnail_.add(tile.channel, block.pixels, null, block.x, block.y,
+						block.width, block.height);
+				}
+			}
 		}
 
-		private void writeSlice(final int width, final int height,
-			final int dataSlice, final Object pixels) throws Exception
+		// Writes a box of pixels starting at slice z, row y and column x
+		private void write(final int z, final int y, final int x,
+			final int depth, final int height, final int width,
+			final Object pixels, final ByteOrder byteOrder) throws HDF5Exception
 		{
-			final long[] start = new long[] { dataSlice, 0, 0 };
+			start_[0] = z;
+			start_[1] = y;
+			start_[2] = x;
 			// count is total number of points in each dimension
-			final long[] count = new long[] { 1, height, width };
-			int ret =
-				H5.H5Sselect_hyperslab(imageDataIDs_[0], HDF5Constants.H5S_SELECT_SET,
-					start, null, count, null);
+			count_[0] = depth;
+			count_[1] = height;
+			count_[2] = width;
+			H5.H5Sselect_hyperslab(imageDataIDs_[0], HDF5Constants.H5S_SELECT_SET,
+				start_, null, count_, null);
 
-			// Create dataspace in memory to copy from
 			final long memDataSpaceID =
-				H5.H5Screate_simple(1, new long[] { width * height }, null);
-			ret = H5.H5Sselect_all(memDataSpaceID);
-
-			ret =
-				H5.H5Dwrite(imageDataIDs_[2], pixels instanceof byte[]
-					? HDF5Constants.H5T_NATIVE_UCHAR : HDF5Constants.H5T_NATIVE_UINT16,
+				H5.H5Screate_simple(1, new long[] { (long) depth * height * width },
+					null);
+			final long start = System.nanoTime();
+			try {
+				H5.H5Dwrite(imageDataIDs_[2], memoryType(pixels, byteOrder),
 					memDataSpaceID, imageDataIDs_[0], HDF5Constants.H5P_DEFAULT, pixels);
+				metrics_.record(ImarisWriterMetrics.Stage.WRITE, start);
+			}
+			finally {
+				H5.H5Sclose(memDataSpaceID);
+			}
+		}
+
+		// HDF5 converts 16 bit pixels given as bytes to the file's byte order
+		private long memoryType(final Object pixels, final ByteOrder byteOrder) {
+			if (byteOrder == null) {
+				return ImarisPixelType.forArray(pixels).getDataType();
+			}
+			return byteOrder == ByteOrder.LITTLE_ENDIAN
+				? HDF5Constants.H5T_STD_U16LE : HDF5Constants.H5T_STD_U16BE;
+		}
+
+		// Copies a slice into the stack of its Z block. Slices arrive in order, so
+		// a stack is complete once a slice of the next block arrives
+		private void stackSlice(final int dataSlice, final Object pixels,
+			final ByteOrder byteOrder) throws HDF5Exception
+		{
+			// array elements per slice
+			final int sliceLength =
+				resLevel_.getImageSizeY() * resLevel_.getImageSizeX() *
+					(byteOrder != null ? 2 : 1);
+			final int stackIndex = dataSlice / resLevel_.getZBlockSize();
+			if (stackIndex != stackIndex_) {
+				flushStack();
+				if (stack_ == null) {
+					stack_ =
+						ImarisPixelType.forArray(pixels).newArray(
+							resLevel_.getZBlockSize() * sliceLength);
+				}
+				stackOrder_ = byteOrder;
+				stackIndex_ = stackIndex;
+				stackDepth_ = 0;
+			}
+
+			// missing slices are written as zeros, like the fill value
+			final int z = dataSlice % resLevel_.getZBlockSize();
+			if (stackDepth_ < z) {
+				clear(stack_, stackDepth_ * sliceLength, z * sliceLength);
+			}
+			System.arraycopy(pixels, 0, stack_, z * sliceLength, sliceLength);
+			stackDepth_ = Math.max(stackDepth_, z + 1);
+		}
+
+		private void clear(final Object pixels, final int from, final int to) {
+			if (pixels instanceof float[]) {
+				Arrays.fill((float[]) pixels, from, to, 0);
+			}
+			else if (pixels instanceof int[]) {
+				Arrays.fill((int[]) pixels, from, to, 0);
+			}
+			else if (pixels instanceof short[]) {
+				Arrays.fill((short[]) pixels, from, to, (short) 0);
+			}
+			else {
+				Arrays.fill((byte[]) pixels, from, to, (byte) 0);
+			}
+		}
 
-			H5.H5Sclose(memDataSpaceID);
+		// Writes the slices collected for the current Z block as one hyperslab
+		private void flushStack() throws HDF5Exception {
+			if (stackIndex_ < 0) {
+				return;
+			}
+			write(stackIndex_ * resLevel_.getZBlockSize(), 0, 0, stackDepth_,
+				resLevel_.getImageSizeY(), resLevel_.getImageSizeX(), stack_,
+				stackOrder_);
+			stackIndex_ = -1;
 		}
 	}
 }
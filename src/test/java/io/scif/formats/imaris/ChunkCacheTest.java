@@ -0,0 +1,125 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link ChunkCache} keeps the chunks used most recently within
+ * its budget and counts its hits and misses.
+ */
+public class ChunkCacheTest {
+
+	private static final int CHUNK_BYTES = 4;
+
+	@Test
+	public void testHitsAndMisses() {
+		final ChunkCache cache = new ChunkCache(10 * CHUNK_BYTES);
+		assertNull(cache.get(0, 0, 0, 0));
+		cache.put(0, 0, 0, 0, makeChunk(0));
+		// chunks differing in any part of their key are kept apart
+		cache.put(1, 0, 0, 0, makeChunk(1));
+		cache.put(0, 1, 0, 0, makeChunk(2));
+		cache.put(0, 0, 1, 0, makeChunk(3));
+		cache.put(0, 0, 0, 1, makeChunk(4));
+		checkChunk(0, cache.get(0, 0, 0, 0));
+		checkChunk(1, cache.get(1, 0, 0, 0));
+		checkChunk(2, cache.get(0, 1, 0, 0));
+		checkChunk(3, cache.get(0, 0, 1, 0));
+		checkChunk(4, cache.get(0, 0, 0, 1));
+		assertNull(cache.get(0, 0, 0, 2));
+		assertEquals(5, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(5 * CHUNK_BYTES, cache.getBytes());
+
+		// clearing drops the chunks but not the counts
+		cache.clear();
+		assertEquals(0, cache.getBytes());
+		assertNull(cache.get(0, 0, 0, 0));
+		assertEquals(5, cache.getHits());
+		assertEquals(3, cache.getMisses());
+	}
+
+	@Test
+	public void testEviction() {
+		final ChunkCache cache = new ChunkCache(3 * CHUNK_BYTES);
+		for (int i = 0; i < 3; i++) {
+			cache.put(0, 0, 0, i, makeChunk(i));
+		}
+		// chunk 1 becomes the least recently used
+		checkChunk(0, cache.get(0, 0, 0, 0));
+		cache.put(0, 0, 0, 3, makeChunk(3));
+		assertEquals(3 * CHUNK_BYTES, cache.getBytes());
+		assertNull(cache.get(0, 0, 0, 1));
+		checkChunk(0, cache.get(0, 0, 0, 0));
+		checkChunk(2, cache.get(0, 0, 0, 2));
+		checkChunk(3, cache.get(0, 0, 0, 3));
+
+		// a chunk put again replaces the old one without evicting others
+		cache.put(0, 0, 0, 2, makeChunk(5));
+		assertEquals(3 * CHUNK_BYTES, cache.getBytes());
+		checkChunk(5, cache.get(0, 0, 0, 2));
+		checkChunk(0, cache.get(0, 0, 0, 0));
+		checkChunk(3, cache.get(0, 0, 0, 3));
+	}
+
+	@Test
+	public void testTooBig() {
+		final ChunkCache cache = new ChunkCache(3 * CHUNK_BYTES);
+		cache.put(0, 0, 0, 0, makeChunk(0));
+		cache.put(0, 0, 0, 1, new byte[4 * CHUNK_BYTES]);
+		assertNull(cache.get(0, 0, 0, 1));
+		checkChunk(0, cache.get(0, 0, 0, 0));
+		assertEquals(CHUNK_BYTES, cache.getBytes());
+	}
+
+	private byte[] makeChunk(final int value) {
+		final byte[] chunk = new byte[CHUNK_BYTES];
+		for (int i = 0; i < chunk.length; i++) {
+			chunk[i] = (byte) (value * 10 + i);
+		}
+		return chunk;
+	}
+
+	// Compares a cached chunk with the one that was put, leaving the buffer's
+	// position alone
+	private void checkChunk(final int value, final ByteBuffer chunk) {
+		final byte[] expected = makeChunk(value);
+		assertEquals(expected.length, chunk.remaining());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], chunk.get(chunk.position() + i));
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the exact and binned counts of {@link Histogram}, and the value range
+ * it records.
+ */
+public class HistogramTest {
+
+	@Test
+	public void testShorts() {
+		final Histogram histogram = new Histogram(ImarisPixelType.UINT16);
+		final long[] counts = histogram.getCounts();
+		counts[100] = 3;
+		counts[101] = 1;
+		counts[355] = 4;
+		assertEquals(8, histogram.getCount());
+		assertEquals(100, histogram.getMin(), 0);
+		assertEquals(355, histogram.getMax(), 0);
+		assertEquals((300 + 101 + 4 * 355) / 8.0, histogram.getMean(), 1e-9);
+
+		// 256 values in 256 bins, one value each
+		final long[] bins = histogram.getBins(256);
+		assertEquals(3, bins[0]);
+		assertEquals(1, bins[1]);
+		assertEquals(4, bins[255]);
+		assertEquals(8, sum(bins));
+	}
+
+	@Test
+	public void testBytes() {
+		final Histogram histogram = new Histogram(ImarisPixelType.UINT8);
+		assertEquals(256, histogram.getCounts().length);
+		assertEquals(0, histogram.getMin(), 0);
+		assertEquals(0, histogram.getMax(), 0);
+		histogram.getCounts()[0] = 5;
+		histogram.getCounts()[255] = 5;
+		assertArrayEquals(new long[] { 5, 0, 0, 5 }, histogram.getBins(4));
+	}
+
+	@Test
+	public void testInts() {
+		final Random random = new Random(1);
+		final int[] pixels = new int[10000];
+		long min = Long.MAX_VALUE, max = 0;
+		for (int p = 0; p < pixels.length; p++) {
+			pixels[p] = random.nextInt(1 << 30) + (1 << 31);
+			min = Math.min(min, pixels[p] & 0xffffffffL);
+			max = Math.max(max, pixels[p] & 0xffffffffL);
+		}
+		final Histogram histogram = new Histogram(ImarisPixelType.UINT32);
+		histogram.add(pixels, 0, 5000);
+		histogram.add(pixels, 5000, pixels.length);
+		assertEquals(pixels.length, histogram.getCount());
+		// the range is exact even though the values are binned
+		assertEquals(min, histogram.getMin(), 0);
+		assertEquals(max, histogram.getMax(), 0);
+		assertEquals(pixels.length, sum(histogram.getBins(256)));
+	}
+
+	@Test
+	public void testNarrowInts() {
+		// values close together are counted one by one
+		final int[] pixels = new int[] { 7, 7, 8, 1000 };
+		final Histogram histogram = new Histogram(ImarisPixelType.UINT32);
+		histogram.add(pixels, 0, pixels.length);
+		assertEquals(7, histogram.getMin(), 0);
+		assertEquals(1000, histogram.getMax(), 0);
+		assertEquals(255.5, histogram.getMean(), 1e-9);
+		final long[] bins = histogram.getBins(994);
+		assertEquals(2, bins[0]);
+		assertEquals(1, bins[1]);
+		assertEquals(1, bins[993]);
+	}
+
+	@Test
+	public void testFloats() {
+		final float[] pixels =
+			new float[] { -1.5f, 0, 2.5f, Float.NaN, Float.POSITIVE_INFINITY, 1e6f };
+		final Histogram histogram = new Histogram(ImarisPixelType.FLOAT32);
+		histogram.add(pixels, 0, pixels.length);
+		// NaN and infinite values are left out
+		assertEquals(4, histogram.getCount());
+		assertEquals(-1.5, histogram.getMin(), 0);
+		assertEquals(1e6, histogram.getMax(), 0);
+		final long[] bins = histogram.getBins(2);
+		assertEquals(3, bins[0]);
+		assertEquals(1, bins[1]);
+	}
+
+	@Test
+	public void testMerge() {
+		final Random random = new Random(2);
+		final float[] pixels = new float[4000];
+		for (int p = 0; p < pixels.length; p++) {
+			// the second half is far wider, so the bins have to move and widen
+			pixels[p] =
+				p < 2000 ? random.nextFloat() : (random.nextFloat() - 0.5f) * 1e5f;
+		}
+		final Histogram whole = new Histogram(ImarisPixelType.FLOAT32);
+		whole.add(pixels, 0, pixels.length);
+		final Histogram first = new Histogram(ImarisPixelType.FLOAT32);
+		final Histogram second = new Histogram(ImarisPixelType.FLOAT32);
+		first.add(pixels, 0, 2000);
+		second.add(pixels, 2000, pixels.length);
+		first.add(second);
+		assertEquals(whole.getCount(), first.getCount());
+		assertEquals(whole.getMin(), first.getMin(), 0);
+		assertEquals(whole.getMax(), first.getMax(), 0);
+		assertEquals(whole.getMean(), first.getMean(), 1e-6);
+		assertArrayEquals(whole.getBins(256), first.getBins(256));
+	}
+
+	private long sum(final long[] counts) {
+		long sum = 0;
+		for (final long c : counts) {
+			sum += c;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests streaming an unknown number of time points, and appending to a file
+ * whose writing was cut short.
+ */
+public class ImarisAppendTest {
+
+	private static final int WIDTH = 64, HEIGHT = 48, SLICES = 10;
+	private static final int CHANNELS = 2;
+
+	private File dir_;
+	private String path_;
+
+	@Before
+	public void setUp() throws IOException {
+		dir_ = TestStacks.createTempDirectory();
+		path_ = new File(dir_, "append.ims").getPath();
+	}
+
+	@After
+	public void tearDown() {
+		TestStacks.delete(dir_);
+	}
+
+	@Test
+	public void testStream() throws IOException {
+		final ImarisWriter writer = open(0, false);
+		assertEquals(0, writer.getFirstFrame());
+		for (int t = 0; t < 3; t++) {
+			TestStacks.addFrame(writer, WIDTH, HEIGHT, SLICES, 0, CHANNELS, t, t);
+		}
+		writer.close();
+		TestStacks.checkFile(path_, WIDTH, HEIGHT, SLICES, CHANNELS, 3);
+	}
+
+	@Test
+	public void testAppendToStream() throws IOException {
+		ImarisWriter writer = open(0, false);
+		for (int t = 0; t < 2; t++) {
+			TestStacks.addFrame(writer, WIDTH, HEIGHT, SLICES, 0, CHANNELS, t, t);
+		}
+		writer.close();
+
+		writer = open(0, true);
+		assertEquals(2, writer.getFirstFrame());
+		TestStacks.addFrame(writer, WIDTH, HEIGHT, SLICES, 0, CHANNELS, 2, 2);
+		writer.close();
+		TestStacks.checkFile(path_, WIDTH, HEIGHT, SLICES, CHANNELS, 3);
+	}
+
+	@Test
+	public void testResume() throws IOException {
+		// the writer stops halfway through the third time point
+		ImarisWriter writer = open(3, false);
+		for (int t = 0; t < 2; t++) {
+			TestStacks.addFrame(writer, WIDTH, HEIGHT, SLICES, 0, CHANNELS, t, t);
+		}
+		for (int z = 0; z < SLICES / 2; z++) {
+			writer.addImage(TestStacks.makePlane(WIDTH, HEIGHT, 2, 0, z), z, 0, 2,
+				TestStacks.DATE);
+		}
+		writer.close();
+
+		// the incomplete time point is written again
+		writer = open(3, true);
+		assertEquals(2, writer.getFirstFrame());
+		TestStacks.addFrame(writer, WIDTH, HEIGHT, SLICES, 0, CHANNELS, 2, 2);
+		writer.close();
+		TestStacks.checkFile(path_, WIDTH, HEIGHT, SLICES, CHANNELS, 3);
+	}
+
+	@Test
+	public void testAppendToComplete() throws IOException {
+		ImarisWriter writer = open(2, false);
+		for (int t = 0; t < 2; t++) {
+			TestStacks.addFrame(writer, WIDTH, HEIGHT, SLICES, 0, CHANNELS, t, t);
+		}
+		writer.close();
+
+		writer = open(2, true);
+		assertEquals(2, writer.getFirstFrame());
+		writer.close();
+		TestStacks.checkFile(path_, WIDTH, HEIGHT, SLICES, CHANNELS, 2);
+	}
+
+	private ImarisWriter open(final int numFrames, final boolean append) {
+		return new ImarisWriter(path_, WIDTH, HEIGHT, SLICES, CHANNELS,
+			numFrames, 1, 1, ImarisPixelType.UINT16, 12, null,
+			new ImarisWriterOptions().setAppend(append));
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import io.scif.formats.imaris.ImarisEvents.Type;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link ImarisEvents} does nothing while no recording is running
+ * and that its events reach a Flight Recorder recording. The recorder is
+ * driven by reflection, as in {@link ImarisEvents}, and the second test
+ * passes trivially on JVMs without it.
+ */
+public class ImarisEventsTest {
+
+	@Test
+	public void testNotRecording() {
+		assertNull(ImarisEvents.begin(Type.WRITE_SLICE));
+		// a null event is ignored
+		ImarisEvents.commit(null, 0, 0, 0, 0, 0);
+	}
+
+	@Test
+	public void testRecording() throws Exception {
+		final Class<?> recordingClass;
+		try {
+			recordingClass = Class.forName("jdk.jfr.Recording");
+		}
+		catch (final ClassNotFoundException e) {
+			return;
+		}
+		final Object recording = recordingClass.newInstance();
+		final File file = File.createTempFile("imaris-events", ".jfr");
+		try {
+			recordingClass.getMethod("enable", String.class).invoke(recording,
+				"io.scif.imaris.WriteSlice");
+			recordingClass.getMethod("start").invoke(recording);
+			final Object event = ImarisEvents.begin(Type.WRITE_SLICE);
+			assertNotNull(event);
+			ImarisEvents.commit(event, 1, 2, 3, 4, 5);
+			recordingClass.getMethod("stop").invoke(recording);
+			assertNull(ImarisEvents.begin(Type.WRITE_SLICE));
+			recordingClass.getMethod("dump", Path.class).invoke(recording,
+				file.toPath());
+
+			final List<?> events =
+				(List<?>) Class.forName("jdk.jfr.consumer.RecordingFile").getMethod(
+					"readAllEvents", Path.class).invoke(null, file.toPath());
+			assertEquals(1, events.size());
+			final Object recorded = events.get(0);
+			final Class<?> recordedClass =
+				Class.forName("jdk.jfr.consumer.RecordedObject");
+			final Method getInt = recordedClass.getMethod("getInt", String.class);
+			assertEquals(1, getInt.invoke(recorded, "channel"));
+			assertEquals(2, getInt.invoke(recorded, "slice"));
+			assertEquals(3, getInt.invoke(recorded, "frame"));
+			assertEquals(4, getInt.invoke(recorded, "resolutionLevel"));
+			assertEquals(5L, recordedClass.getMethod("getLong", String.class)
+				.invoke(recorded, "bytes"));
+		}
+		finally {
+			recordingClass.getMethod("close").invoke(recording);
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that files written with and without compression, and with slices
+ * stacked into whole Z blocks, read back as written.
+ */
+public class ImarisRoundTripTest {
+
+	private static final int WIDTH = 64, HEIGHT = 48, SLICES = 10;
+	private static final int CHANNELS = 2, FRAMES = 2;
+
+	private File dir_;
+
+	@Before
+	public void setUp() throws IOException {
+		dir_ = TestStacks.createTempDirectory();
+	}
+
+	@After
+	public void tearDown() {
+		TestStacks.delete(dir_);
+	}
+
+	@Test
+	public void testCompressed() throws IOException {
+		check("compressed.ims", new ImarisWriterOptions().setCompression(
+			ImarisCompression.SHUFFLE_DEFLATE_2));
+	}
+
+	@Test
+	public void testUncompressed() throws IOException {
+		check("uncompressed.ims", new ImarisWriterOptions().setCompression(
+			ImarisCompression.NONE));
+	}
+
+	@Test
+	public void testStackedSlices() throws IOException {
+		check("stacked.ims", new ImarisWriterOptions().setCompression(
+			ImarisCompression.NONE).setStackSlices(true));
+	}
+
+	private void check(final String name, final ImarisWriterOptions options)
+		throws IOException
+	{
+		final String path = new File(dir_, name).getPath();
+		final ImarisWriter writer =
+			new ImarisWriter(path, WIDTH, HEIGHT, SLICES, CHANNELS, FRAMES, 1, 1,
+				ImarisPixelType.UINT16, 12, null, options);
+		for (int t = 0; t < FRAMES; t++) {
+			TestStacks.addFrame(writer, WIDTH, HEIGHT, SLICES, 0, CHANNELS, t, t);
+		}
+		writer.close();
+		TestStacks.checkFile(path, WIDTH, HEIGHT, SLICES, CHANNELS, FRAMES);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that files written in shards read back through the external links of
+ * their master file.
+ */
+public class ImarisShardPlanTest {
+
+	private static final int WIDTH = 64, HEIGHT = 48, SLICES = 10;
+	private static final int CHANNELS = 3, FRAMES = 4;
+
+	private File dir_;
+	private String path_;
+
+	@Before
+	public void setUp() throws IOException {
+		dir_ = TestStacks.createTempDirectory();
+		path_ = new File(dir_, "master.ims").getPath();
+	}
+
+	@After
+	public void tearDown() {
+		TestStacks.delete(dir_);
+	}
+
+	@Test
+	public void testSplitFrames() throws IOException {
+		final ImarisShardPlan plan = newPlan();
+		final List<ImarisShardPlan.Shard> shards = plan.splitFrames(3);
+		assertEquals(3, shards.size());
+		assertEquals(0, shards.get(0).getFirstFrame());
+		assertEquals(FRAMES, shards.get(2).getFirstFrame() +
+			shards.get(2).getNumFrames());
+		writeShards(plan);
+		TestStacks.checkFile(path_, WIDTH, HEIGHT, SLICES, CHANNELS, FRAMES);
+	}
+
+	@Test
+	public void testSplitChannels() throws IOException {
+		final ImarisShardPlan plan = newPlan();
+		final List<ImarisShardPlan.Shard> shards = plan.splitChannels(2);
+		assertEquals(2, shards.size());
+		assertEquals(CHANNELS, shards.get(1).getFirstChannel() +
+			shards.get(1).getNumChannels());
+		writeShards(plan);
+		TestStacks.checkFile(path_, WIDTH, HEIGHT, SLICES, CHANNELS, FRAMES);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testMissingShard() {
+		final ImarisShardPlan plan = newPlan();
+		plan.splitFrames(2);
+		final ImarisShardPlan.Shard shard = plan.getShards().get(0);
+		final ImarisWriter writer = plan.openWriter(shard);
+		for (int t = 0; t < shard.getNumFrames(); t++) {
+			TestStacks.addFrame(writer, WIDTH, HEIGHT, SLICES, 0, CHANNELS, t, t);
+		}
+		writer.close();
+		plan.finish();
+	}
+
+	private ImarisShardPlan newPlan() {
+		return new ImarisShardPlan(path_, WIDTH, HEIGHT, SLICES, CHANNELS, FRAMES,
+			1, 1, ImarisPixelType.UINT16, 12, null, new ImarisWriterOptions());
+	}
+
+	// Writes each shard with its own writer, as separate processes would, then
+	// the master file
+	private void writeShards(final ImarisShardPlan plan) {
+		for (final ImarisShardPlan.Shard shard : plan.getShards()) {
+			final ImarisWriter writer = plan.openWriter(shard);
+			for (int t = 0; t < shard.getNumFrames(); t++) {
+				TestStacks.addFrame(writer, WIDTH, HEIGHT, SLICES, shard
+					.getFirstChannel(), shard.getNumChannels(), shard.getFirstFrame() +
+						t, t);
+			}
+			writer.close();
+		}
+		plan.finish();
+	}
+}
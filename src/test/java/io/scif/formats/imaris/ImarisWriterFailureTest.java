@@ -0,0 +1,81 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that failures on the preprocessing and writing threads of
+ * {@link ImarisWriter} reach the caller.
+ */
+public class ImarisWriterFailureTest {
+
+	private static final int WIDTH = 64, HEIGHT = 48, SLICES = 4;
+
+	private File dir_;
+
+	@Before
+	public void setUp() throws IOException {
+		dir_ = TestStacks.createTempDirectory();
+	}
+
+	@After
+	public void tearDown() {
+		TestStacks.delete(dir_);
+	}
+
+	@Test
+	public void testFailureThrownByClose() {
+		final ImarisWriter writer =
+			new ImarisWriter(new File(dir_, "failure.ims").getPath(), WIDTH, HEIGHT,
+				SLICES, 1, 1, 1, 1, ImarisPixelType.UINT16, 12, null,
+				new ImarisWriterOptions());
+		writer.addImage(TestStacks.makePlane(WIDTH, HEIGHT, 0, 0, 0), 0, 0, 0,
+			TestStacks.DATE);
+		// a channel the file doesn't have can't be written
+		writer.addImage(TestStacks.makePlane(WIDTH, HEIGHT, 0, 1, 0), 0, 1, 0,
+			TestStacks.DATE);
+		try {
+			writer.close();
+			fail("close() should pass on the failure");
+		}
+		catch (final IllegalStateException ex) {
+			assertTrue(ex.getCause() != null);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.scif.formats.imaris.ImarisWriterMetrics.Snapshot;
+import io.scif.formats.imaris.ImarisWriterMetrics.Stage;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link ImarisWriterMetrics} adds up what is recorded and that its
+ * snapshots keep the values of their moment.
+ */
+public class ImarisWriterMetricsTest {
+
+	private static final long SECOND = 1000000000L;
+
+	@Test
+	public void testEmpty() {
+		final Snapshot snapshot = new ImarisWriterMetrics(2, 100).snapshot();
+		for (final Stage stage : Stage.values()) {
+			assertEquals(0, snapshot.getCount(stage));
+			assertEquals(0, snapshot.getMeanNanos(stage), 0);
+			assertEquals(0, snapshot.getPercentileNanos(stage, 99));
+		}
+		assertEquals(2, snapshot.getNumResolutionLevels());
+		assertEquals(1, snapshot.getCompressionRatio(), 0);
+		assertEquals(0, snapshot.getPlanes(), 0);
+	}
+
+	@Test
+	public void testLatencies() {
+		final ImarisWriterMetrics metrics = new ImarisWriterMetrics(1, 100);
+		// a start in the future counts as no time at all
+		metrics.record(Stage.WRITE, System.nanoTime() + SECOND);
+		metrics.record(Stage.WRITE, System.nanoTime() - SECOND);
+		final Snapshot snapshot = metrics.snapshot();
+		metrics.record(Stage.WRITE, System.nanoTime());
+
+		assertEquals(2, snapshot.getCount(Stage.WRITE));
+		assertEquals(0, snapshot.getCount(Stage.ADD));
+		final long max = snapshot.getMaxNanos(Stage.WRITE);
+		assertTrue(max >= SECOND);
+		assertEquals(max, snapshot.getTotalNanos(Stage.WRITE));
+		assertEquals(max / 2.0, snapshot.getMeanNanos(Stage.WRITE), 0);
+		final long[] histogram = snapshot.getHistogram(Stage.WRITE);
+		assertEquals(1, histogram[0]);
+		assertEquals(1, histogram[64 - Long.numberOfLeadingZeros(max)]);
+		assertEquals(1, snapshot.getPercentileNanos(Stage.WRITE, 50));
+		assertEquals(max, snapshot.getPercentileNanos(Stage.WRITE, 100));
+
+		assertEquals(3, metrics.snapshot().getCount(Stage.WRITE));
+	}
+
+	@Test
+	public void testBytesAndPlanes() {
+		final ImarisWriterMetrics metrics = new ImarisWriterMetrics(2, 100);
+		metrics.addBytes(0, 100, 25);
+		metrics.addBytes(1, 20, 15);
+		for (int i = 0; i < 3; i++) {
+			metrics.addPixels(50);
+		}
+		final Snapshot snapshot = metrics.snapshot();
+		metrics.addBytes(0, 100, 100);
+		metrics.addPixels(50);
+
+		assertEquals(100, snapshot.getBytesIn(0));
+		assertEquals(25, snapshot.getBytesOut(0));
+		assertEquals(20, snapshot.getBytesIn(1));
+		assertEquals(15, snapshot.getBytesOut(1));
+		assertEquals(3, snapshot.getCompressionRatio(), 0);
+		assertEquals(1.5, snapshot.getPlanes(), 0);
+		assertEquals(2, metrics.snapshot().getPlanes(), 0);
+	}
+
+	@Test
+	public void testQueues() {
+		final ImarisWriterMetrics metrics = new ImarisWriterMetrics(1, 100);
+		metrics.sampleQueues(3, 1, 2);
+		metrics.sampleQueues(1, 4, 0);
+		final Snapshot snapshot = metrics.snapshot();
+		assertEquals(1, snapshot.getIngestQueueSize());
+		assertEquals(4, snapshot.getWritingQueueSize());
+		assertEquals(0, snapshot.getReorderPendingCount());
+		assertEquals(3, snapshot.getMaxIngestQueueSize());
+		assertEquals(4, snapshot.getMaxWritingQueueSize());
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link PyramidBuilder} gives exactly the lower resolution levels
+ * of the original preprocessor, on one thread and on several.
+ */
+public class PyramidBuilderTest {
+
+	// odd sizes, so that blocks are cut off at the edges and the reduction
+	// factors of the levels don't all nest
+	private static final int WIDTH = 37, HEIGHT = 23, DEPTH = 8;
+
+	@Test
+	public void testBytes() {
+		for (final int numSlices : new int[] { 8, 5, 1 }) {
+			check(ImarisPixelType.UINT8, numSlices, null);
+		}
+	}
+
+	@Test
+	public void testShorts() {
+		for (final int numSlices : new int[] { 8, 5, 1 }) {
+			check(ImarisPixelType.UINT16, numSlices, null);
+		}
+	}
+
+	@Test
+	public void testPackedShorts() {
+		check(ImarisPixelType.UINT16, 8, ByteOrder.LITTLE_ENDIAN);
+		check(ImarisPixelType.UINT16, 6, ByteOrder.BIG_ENDIAN);
+	}
+
+	@Test
+	public void testInts() {
+		check(ImarisPixelType.UINT32, 8, null);
+		check(ImarisPixelType.UINT32, 3, null);
+	}
+
+	// Builds one batch whose last slices are padding, if numSlices is below
+	// the batch size, and compares every level with the original averages
+	private void check(final ImarisPixelType pixelType, final int numSlices,
+		final ByteOrder byteOrder)
+	{
+		final ResolutionLevel[] resLevels = makeLevels(pixelType);
+		final int batchSize = resLevels[resLevels.length - 1].getReductionFactorZ();
+		assertEquals(DEPTH, batchSize);
+		final Random random = new Random(numSlices);
+		final long[][] values = new long[batchSize][];
+		final Object[] slices = new Object[batchSize];
+		for (int i = 0; i < numSlices; i++) {
+			values[i] = new long[WIDTH * HEIGHT];
+			for (int p = 0; p < values[i].length; p++) {
+				values[i][p] =
+					pixelType == ImarisPixelType.UINT32 ? random.nextInt() & 0xffffffffL
+						: random.nextInt(1 << 8 * pixelType.getByteDepth());
+			}
+			slices[i] = toPixels(values[i], pixelType, byteOrder);
+		}
+
+		final ExecutorService executor = new ForkJoinPool(3);
+		try {
+			final Object[][] serial =
+				new PyramidBuilder(WIDTH, HEIGHT, resLevels).build(slices, batchSize,
+					new Object[resLevels.length][batchSize], byteOrder);
+			final Object[][] parallel =
+				new PyramidBuilder(WIDTH, HEIGHT, resLevels, null, executor, 3).build(
+					slices, batchSize, new Object[resLevels.length][batchSize],
+					byteOrder);
+			for (int level = 1; level < resLevels.length; level++) {
+				final int fz = resLevels[level].getReductionFactorZ();
+				for (int i = 0; i < batchSize; i += fz) {
+					final long[] expected = average(values, resLevels[level], i);
+					final String message =
+						pixelType + " level " + level + " slice " + i;
+					assertArrayEquals(message, expected, toLongs(serial[level][i]));
+					assertArrayEquals(message, expected, toLongs(parallel[level][i]));
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	// Halves every dimension twice, then Z alone, like ResolutionLevelMaker
+	private ResolutionLevel[] makeLevels(final ImarisPixelType pixelType) {
+		final int[][] sizes =
+			new int[][] { { WIDTH, HEIGHT, DEPTH }, { 19, 12, 4 }, { 10, 6, 2 },
+				{ 10, 6, 1 } };
+		final ResolutionLevel[] resLevels = new ResolutionLevel[sizes.length];
+		for (int level = 0; level < sizes.length; level++) {
+			resLevels[level] =
+				new ResolutionLevel(level, WIDTH, HEIGHT, DEPTH, sizes[level][0],
+					sizes[level][1], sizes[level][2], 1, pixelType.getByteDepth());
+		}
+		return resLevels;
+	}
+
+	// Averages of the original preprocessor: sums of whole blocks divided and
+	// truncated, pixels of blocks cut off by the image edge left at 0, and
+	// padding slices counted as copies of the first slice of the batch
+	private long[] average(final long[][] values, final ResolutionLevel level,
+		final int first)
+	{
+		final int fx = level.getReductionFactorX();
+		final int fy = level.getReductionFactorY();
+		final int fz = level.getReductionFactorZ();
+		final int sizeX = level.getImageSizeX();
+		final long[] averages = new long[sizeX * level.getImageSizeY()];
+		for (int dsY = 0; (dsY + 1) * fy <= HEIGHT; dsY++) {
+			for (int dsX = 0; (dsX + 1) * fx <= WIDTH; dsX++) {
+				long sum = 0;
+				for (int z = first; z < first + fz; z++) {
+					final long[] slice = values[z] == null ? values[0] : values[z];
+					for (int y = dsY * fy; y < (dsY + 1) * fy; y++) {
+						for (int x = dsX * fx; x < (dsX + 1) * fx; x++) {
+							sum += slice[y * WIDTH + x];
+						}
+					}
+				}
+				averages[dsY * sizeX + dsX] = sum / ((long) fx * fy * fz);
+			}
+		}
+		return averages;
+	}
+
+	private Object toPixels(final long[] values,
+		final ImarisPixelType pixelType, final ByteOrder byteOrder)
+	{
+		if (byteOrder != null) {
+			final byte[] bytes = new byte[2 * values.length];
+			final int lo = byteOrder == ByteOrder.LITTLE_ENDIAN ? 0 : 1;
+			for (int p = 0; p < values.length; p++) {
+				bytes[2 * p + lo] = (byte) values[p];
+				bytes[2 * p + 1 - lo] = (byte) (values[p] >> 8);
+			}
+			return bytes;
+		}
+		final Object pixels = pixelType.newArray(values.length);
+		for (int p = 0; p < values.length; p++) {
+			if (pixels instanceof byte[]) {
+				((byte[]) pixels)[p] = (byte) values[p];
+			}
+			else if (pixels instanceof short[]) {
+				((short[]) pixels)[p] = (short) values[p];
+			}
+			else {
+				((int[]) pixels)[p] = (int) values[p];
+			}
+		}
+		return pixels;
+	}
+
+	private long[] toLongs(final Object pixels) {
+		if (pixels instanceof byte[]) {
+			final byte[] bytes = (byte[]) pixels;
+			final long[] values = new long[bytes.length];
+			for (int p = 0; p < bytes.length; p++) {
+				values[p] = bytes[p] & 0xff;
+			}
+			return values;
+		}
+		if (pixels instanceof short[]) {
+			final short[] shorts = (short[]) pixels;
+			final long[] values = new long[shorts.length];
+			for (int p = 0; p < shorts.length; p++) {
+				values[p] = shorts[p] & 0xffff;
+			}
+			return values;
+		}
+		final int[] ints = (int[]) pixels;
+		final long[] values = new long[ints.length];
+		for (int p = 0; p < ints.length; p++) {
+			values[p] = ints[p] & 0xffffffffL;
+		}
+		return values;
+	}
+}
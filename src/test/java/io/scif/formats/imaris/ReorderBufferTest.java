@@ -0,0 +1,256 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link ReorderBuffer} releases slices in the order the
+ * preprocessor needs, whatever order they arrive in, with and without
+ * spilling them to disk.
+ */
+public class ReorderBufferTest {
+
+	private static final int NUM_SLICES = 10, NUM_CHANNELS = 2, BATCH_SIZE = 4;
+	private static final int NUM_FRAMES = 3, WIDTH = 8, HEIGHT = 4;
+	private static final long SLICE_BYTES = 2 * WIDTH * HEIGHT;
+
+	@Test
+	public void testInOrder() throws IOException {
+		final List<int[]> order = new ArrayList<int[]>();
+		for (int t = 0; t < NUM_FRAMES; t++) {
+			for (int z = 0; z < NUM_SLICES; z++) {
+				for (int c = 0; c < NUM_CHANNELS; c++) {
+					order.add(new int[] { t, c, z });
+				}
+			}
+		}
+		final ReorderBuffer buffer = newBuffer(Long.MAX_VALUE);
+		check(buffer, order);
+		assertEquals(0, buffer.getSpilledCount());
+	}
+
+	@Test
+	public void testFramesReversed() throws IOException {
+		final List<int[]> order = new ArrayList<int[]>();
+		for (int t = NUM_FRAMES - 1; t >= 0; t--) {
+			for (int c = 0; c < NUM_CHANNELS; c++) {
+				for (int z = 0; z < NUM_SLICES; z++) {
+					order.add(new int[] { t, c, z });
+				}
+			}
+		}
+		check(newBuffer(Long.MAX_VALUE), order);
+	}
+
+	// Later batches of a channel are complete before earlier ones
+	@Test
+	public void testSlicesReversed() throws IOException {
+		final List<int[]> order = new ArrayList<int[]>();
+		for (int t = 0; t < NUM_FRAMES; t++) {
+			for (int z = NUM_SLICES - 1; z >= 0; z--) {
+				for (int c = 0; c < NUM_CHANNELS; c++) {
+					order.add(new int[] { t, c, z });
+				}
+			}
+		}
+		check(newBuffer(Long.MAX_VALUE), order);
+	}
+
+	@Test
+	public void testSlicesShuffled() throws IOException {
+		final Random random = new Random(42);
+		final List<int[]> order = new ArrayList<int[]>();
+		for (int t = 0; t < NUM_FRAMES; t++) {
+			final List<int[]> frame = new ArrayList<int[]>();
+			for (int z = 0; z < NUM_SLICES; z++) {
+				for (int c = 0; c < NUM_CHANNELS; c++) {
+					frame.add(new int[] { t, c, z });
+				}
+			}
+			Collections.shuffle(frame, random);
+			order.addAll(frame);
+		}
+		check(newBuffer(Long.MAX_VALUE), order);
+		// and with slices spilled
+		Collections.shuffle(order, random);
+		final ReorderBuffer buffer = newBuffer(3 * SLICE_BYTES);
+		check(buffer, order);
+		assertTrue(buffer.getSpilledCount() > 0);
+	}
+
+	@Test
+	public void testSpill() throws IOException {
+		final List<int[]> order = new ArrayList<int[]>();
+		for (int t = NUM_FRAMES - 1; t >= 0; t--) {
+			for (int z = 0; z < NUM_SLICES; z++) {
+				for (int c = 0; c < NUM_CHANNELS; c++) {
+					order.add(new int[] { t, c, z });
+				}
+			}
+		}
+		// room for only three slices in memory
+		final ReorderBuffer buffer = newBuffer(3 * SLICE_BYTES);
+		check(buffer, order);
+		assertTrue(buffer.getSpilledCount() > 0);
+	}
+
+	@Test
+	public void testFirstFrame() throws IOException {
+		final List<int[]> order = new ArrayList<int[]>();
+		for (int t = NUM_FRAMES - 1; t >= 1; t--) {
+			for (int c = 0; c < NUM_CHANNELS; c++) {
+				for (int z = 0; z < NUM_SLICES; z++) {
+					order.add(new int[] { t, c, z });
+				}
+			}
+		}
+		final ReorderBuffer buffer = newBuffer(Long.MAX_VALUE);
+		buffer.setFirstFrame(1);
+		check(buffer, order);
+	}
+
+	// A slice added twice must not replace the first one, whether it is still
+	// waiting, has been released or belongs to a time point already written
+	@Test
+	public void testAddedTwice() throws IOException {
+		final ReorderBuffer buffer = newBuffer(Long.MAX_VALUE);
+		buffer.setFirstFrame(1);
+		try {
+			add(buffer, 1, 0, 5);
+			checkRejected(buffer, 1, 0, 5);
+			assertEquals(1, buffer.getPendingCount());
+			for (int z = 0; z < BATCH_SIZE; z++) {
+				add(buffer, 1, 1, z);
+			}
+			assertEquals(1, buffer.getPendingCount());
+			checkRejected(buffer, 1, 1, 0);
+			checkRejected(buffer, 0, 0, 0);
+		}
+		finally {
+			buffer.close();
+		}
+	}
+
+	private void checkRejected(final ReorderBuffer buffer, final int frame,
+		final int channel, final int slice) throws IOException
+	{
+		try {
+			add(buffer, frame, channel, slice);
+			fail("slice " + slice + " of frame " + frame + " should be rejected");
+		}
+		catch (final IllegalArgumentException ex) {
+			// expected
+		}
+	}
+
+	private List<PipelineImage> add(final ReorderBuffer buffer,
+		final int frame, final int channel, final int slice) throws IOException
+	{
+		return buffer.add(new PipelineImage(makePixels(frame, channel, slice),
+			channel, slice, frame, null));
+	}
+
+	// Makes a buffer with its scratch file in the default temporary directory
+	private ReorderBuffer newBuffer(final long memoryBudget) {
+		return new ReorderBuffer(NUM_SLICES, NUM_CHANNELS, BATCH_SIZE,
+			SLICE_BYTES, memoryBudget, null);
+	}
+
+	// Adds slices, given as frame, channel and slice, and checks that every one
+	// is released with its own pixels, in order: time points one after another
+	// and each channel's slices in whole batches from the first
+	private void check(final ReorderBuffer buffer, final List<int[]> order)
+		throws IOException
+	{
+		final List<PipelineImage> released = new ArrayList<PipelineImage>();
+		try {
+			for (final int[] index : order) {
+				final PipelineImage img =
+					new PipelineImage(makePixels(index[0], index[1], index[2]),
+						index[1], index[2], index[0], null);
+				released.addAll(buffer.add(img));
+			}
+			assertEquals(0, buffer.getPendingCount());
+		}
+		finally {
+			buffer.close();
+		}
+
+		assertEquals(order.size(), released.size());
+		final int[] next = new int[NUM_CHANNELS];
+		int frame = released.get(0).frame;
+		for (int i = 0; i < released.size(); i++) {
+			final PipelineImage img = released.get(i);
+			if (img.frame != frame) {
+				for (int c = 0; c < NUM_CHANNELS; c++) {
+					assertEquals("slices of frame " + frame, NUM_SLICES, next[c]);
+				}
+				assertEquals(frame + 1, img.frame);
+				frame = img.frame;
+				next[0] = next[1] = 0;
+			}
+			assertEquals("slice of frame " + frame + " channel " + img.channel,
+				next[img.channel]++, img.slice);
+			// batches are released whole
+			if (img.slice % BATCH_SIZE == 0) {
+				for (int s = 1; s < BATCH_SIZE && img.slice + s < NUM_SLICES; s++) {
+					assertEquals(img.channel, released.get(i + s).channel);
+					assertEquals(img.slice + s, released.get(i + s).slice);
+				}
+			}
+			final short[] expected = makePixels(img.frame, img.channel, img.slice);
+			final short[] pixels = (short[]) img.pixels;
+			for (int p = 0; p < expected.length; p++) {
+				assertEquals(expected[p], pixels[p]);
+			}
+		}
+	}
+
+	private short[] makePixels(final int frame, final int channel,
+		final int slice)
+	{
+		final short[] pixels = new short[WIDTH * HEIGHT];
+		for (int p = 0; p < pixels.length; p++) {
+			pixels[p] = (short) (frame * 1000 + channel * 100 + slice + p * 7);
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the resolution levels chosen by {@link ResolutionLevelMaker}.
+ */
+public class ResolutionLevelMakerTest {
+
+	private static final long MAX_LEVEL_BYTES = 4 * 1024 * 1024;
+
+	// A 60000 x 60000 16 bit mosaic has 7.2 GB in its first level, more than
+	// an int holds
+	@Test
+	public void testLargeTiledImage() {
+		final ResolutionLevel[] levels =
+			ResolutionLevelMaker.calcLevels(60000, 60000, 1, 1, 2);
+		final int[] sizes = { 60000, 30000, 15000, 7500, 3750, 1875, 938 };
+		assertEquals(sizes.length, levels.length);
+		for (int i = 0; i < levels.length; i++) {
+			assertEquals(sizes[i], levels[i].getImageSizeX());
+			assertEquals(sizes[i], levels[i].getImageSizeY());
+			assertEquals(1, levels[i].getImageSizeZ());
+			assertEquals(2L * sizes[i] * sizes[i], levels[i].getImageNumBytes());
+		}
+		checkSizes(levels);
+	}
+
+	// A 2048 x 2048 x 200 stack has more bytes than an int holds with 4 byte
+	// pixels. Halving it stops at the same level for 16 and 32 bit pixels
+	@Test
+	public void testPixelTypes() {
+		final ResolutionLevel[] shorts =
+			ResolutionLevelMaker.calcLevels(2048, 2048, 200, 1, 2);
+		for (final ImarisPixelType pixelType : ImarisPixelType.values()) {
+			final ResolutionLevel[] levels =
+				ResolutionLevelMaker.calcLevels(2048, 2048, 200, 1, pixelType
+					.getByteDepth());
+			checkSizes(levels);
+			if (pixelType.getByteDepth() < 2) {
+				continue;
+			}
+			assertEquals(pixelType.toString(), shorts.length, levels.length);
+			for (int i = 0; i < levels.length; i++) {
+				assertEquals(shorts[i].getImageSizeX(), levels[i].getImageSizeX());
+				assertEquals(shorts[i].getImageSizeY(), levels[i].getImageSizeY());
+				assertEquals(shorts[i].getImageSizeZ(), levels[i].getImageSizeZ());
+			}
+		}
+	}
+
+	// Every level but the last is too large to stop at
+	private void checkSizes(final ResolutionLevel[] levels) {
+		for (int i = 0; i < levels.length - 1; i++) {
+			assertTrue(levels[i].getImageNumBytes() > MAX_LEVEL_BYTES);
+		}
+		assertTrue(levels[levels.length - 1].getImageNumBytes() <= MAX_LEVEL_BYTES);
+	}
+
+}
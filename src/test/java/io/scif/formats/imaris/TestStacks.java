@@ -0,0 +1,146 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Writes and checks stacks of 16 bit test pixels, whose values tell the time
+ * point, channel and slice they belong to.
+ */
+final class TestStacks {
+
+	static final String DATE = "2012-11-08 16:14:17.000";
+
+	private TestStacks() {}
+
+	static short[] makePlane(final int width, final int height,
+		final int frame, final int channel, final int slice)
+	{
+		final short[] pixels = new short[width * height];
+		for (int p = 0; p < pixels.length; p++) {
+			pixels[p] =
+				(short) ((frame * 997 + channel * 101 + slice * 31 + p) & 0xfff);
+		}
+		return pixels;
+	}
+
+	/**
+	 * Adds all slices of the given channels of one time point.
+	 *
+	 * @param frame time point the pixels are made for
+	 * @param writerFrame time point they are added as
+	 * @param firstChannel channel the pixels of the writer's channel 0 are made
+	 *          for
+	 */
+	static void addFrame(final ImarisWriter writer, final int width,
+		final int height, final int numSlices, final int firstChannel,
+		final int numChannels, final int frame, final int writerFrame)
+	{
+		for (int z = 0; z < numSlices; z++) {
+			for (int c = 0; c < numChannels; c++) {
+				writer.addImage(makePlane(width, height, frame, firstChannel + c, z),
+					z, c, writerFrame, DATE);
+			}
+		}
+	}
+
+	/**
+	 * Checks that every time point and channel in a file holds its own
+	 * pixels at full resolution.
+	 */
+	static void checkFile(final String path, final int width, final int height,
+		final int numSlices, final int numChannels, final int numFrames)
+		throws IOException
+	{
+		final ImarisReader reader = new ImarisReader(path);
+		try {
+			checkFile(reader, width, height, numSlices, numChannels, numFrames);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Checks a file as {@link #checkFile(String, int, int, int, int, int)},
+	 * through a reader that is left open.
+	 */
+	static void checkFile(final ImarisReader reader, final int width,
+		final int height, final int numSlices, final int numChannels,
+		final int numFrames) throws IOException
+	{
+		assertEquals(numFrames, reader.getNumTimePoints());
+		assertEquals(numChannels, reader.getNumChannels());
+		final byte[] stack = new byte[2 * width * height * numSlices];
+		for (int t = 0; t < numFrames; t++) {
+			for (int c = 0; c < numChannels; c++) {
+				reader.readStack(0, t, c, stack);
+				assertArrayEquals("time point " + t + " channel " + c, makeStack(
+					width, height, numSlices, t, c), stack);
+			}
+		}
+	}
+
+	// Expected stack as little endian bytes, as the reader gives them
+	private static byte[] makeStack(final int width, final int height,
+		final int numSlices, final int frame, final int channel)
+	{
+		final byte[] stack = new byte[2 * width * height * numSlices];
+		for (int z = 0; z < numSlices; z++) {
+			final short[] plane = makePlane(width, height, frame, channel, z);
+			for (int p = 0; p < plane.length; p++) {
+				final int i = 2 * (z * plane.length + p);
+				stack[i] = (byte) plane[p];
+				stack[i + 1] = (byte) (plane[p] >> 8);
+			}
+		}
+		return stack;
+	}
+
+	static File createTempDirectory() throws IOException {
+		return Files.createTempDirectory("imaris-test").toFile();
+	}
+
+	static void delete(final File dir) {
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link Thumbnail} projects the slices it is given and scales the
+ * projection to fit, keeping its aspect ratio.
+ */
+public class ThumbnailTest {
+
+	@Test
+	public void testProjection() {
+		// 2 x 1 pixels are drawn 256 x 128, centered vertically
+		final Thumbnail thumbnail = new Thumbnail(makeLevel(2, 1), 2);
+		assertTrue(thumbnail.isEmpty());
+		thumbnail.add(0, new byte[] { 10, (byte) 200 }, null, 0, 0, 2, 1);
+		thumbnail.add(0, new byte[] { 50, 100 }, null, 0, 0, 2, 1);
+		// 256 in the second channel, covering only the second pixel
+		thumbnail.add(1, new byte[] { 0, 1 }, ByteOrder.LITTLE_ENDIAN, 1, 0, 1, 1);
+		assertFalse(thumbnail.isEmpty());
+
+		final byte[] rgba =
+			thumbnail.render(new Color[] { Color.RED, Color.GREEN }, new double[] {
+				0, 0 }, new double[] { 200, 256 });
+		checkPixel(rgba, 0, 63, 0, 0, 0);
+		checkPixel(rgba, 0, 64, 64, 0, 0);
+		checkPixel(rgba, 127, 191, 64, 0, 0);
+		checkPixel(rgba, 128, 64, 255, 255, 0);
+		checkPixel(rgba, 255, 191, 255, 255, 0);
+		checkPixel(rgba, 255, 192, 0, 0, 0);
+	}
+
+	@Test
+	public void testScaling() {
+		// 1 x 4 pixels are drawn 64 x 256, centered horizontally
+		final Thumbnail thumbnail = new Thumbnail(makeLevel(1, 4), 1);
+		thumbnail.add(0, new float[] { 0, 1, 2, 3 }, null, 0, 0, 1, 4);
+		// infinite and NaN values are left out
+		thumbnail.add(0, new float[] { Float.NaN, Float.POSITIVE_INFINITY, 0, 0 },
+			null, 0, 0, 1, 4);
+
+		final byte[] rgba =
+			thumbnail.render(new Color[] { Color.WHITE }, new double[] { 0 },
+				new double[] { 3 });
+		checkPixel(rgba, 95, 0, 0, 0, 0);
+		checkPixel(rgba, 96, 0, 0, 0, 0);
+		checkPixel(rgba, 96, 64, 85, 85, 85);
+		checkPixel(rgba, 159, 191, 170, 170, 170);
+		checkPixel(rgba, 159, 255, 255, 255, 255);
+		checkPixel(rgba, 160, 255, 0, 0, 0);
+	}
+
+	private ResolutionLevel makeLevel(final int width, final int height) {
+		return new ResolutionLevel(0, width, height, 1, width, height, 1, 1, 1);
+	}
+
+	private void checkPixel(final byte[] rgba, final int x, final int y,
+		final int red, final int green, final int blue)
+	{
+		final int i = (y * Thumbnail.SIZE + x) * 4;
+		assertEquals(red, rgba[i] & 0xff);
+		assertEquals(green, rgba[i + 1] & 0xff);
+		assertEquals(blue, rgba[i + 2] & 0xff);
+		assertEquals(255, rgba[i + 3] & 0xff);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * #%L
+ * SCIFIO library for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2011 - 2022 SCIFIO developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package io.scif.formats.imaris;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests the blocks that {@link TileAccumulator} holds until they are
+ * complete.
+ */
+public class TileAccumulatorTest {
+
+	private static final int WIDTH = 37, HEIGHT = 23, SLICES = 8;
+
+	// Level slices average two full resolution slices, so the blocks of a
+	// level slice are all held until the tiles of its second slice arrive
+	@Test
+	public void testPending() {
+		final ResolutionLevel level =
+			new ResolutionLevel(1, WIDTH, HEIGHT, SLICES, 19, 12, 4, 1, 2);
+		final TileAccumulator accumulator =
+			new TileAccumulator(level, WIDTH, HEIGHT);
+		final int blocks = countBlocks(level);
+
+		addTiles(accumulator, 0);
+		assertEquals(blocks, accumulator.getPendingCount());
+		addTiles(accumulator, 0);
+		assertEquals(0, accumulator.getPendingCount());
+		assertEquals(0, accumulator.close());
+	}
+
+	@Test
+	public void testClose() {
+		final ResolutionLevel level =
+			new ResolutionLevel(1, WIDTH, HEIGHT, SLICES, 19, 12, 4, 1, 2);
+		final TileAccumulator accumulator =
+			new TileAccumulator(level, WIDTH, HEIGHT);
+
+		addTiles(accumulator, 1);
+		assertEquals(countBlocks(level), accumulator.close());
+		assertEquals(0, accumulator.getPendingCount());
+	}
+
+	// Adds one full resolution slice in 10 x 10 tiles
+	private void addTiles(final TileAccumulator accumulator, final int slice) {
+		for (int y = 0; y < HEIGHT; y += 10) {
+			for (int x = 0; x < WIDTH; x += 10) {
+				final int width = Math.min(10, WIDTH - x);
+				final int height = Math.min(10, HEIGHT - y);
+				accumulator.add(new short[width * height], null, x, y, width, height,
+					slice, 1);
+			}
+		}
+	}
+
+	private int countBlocks(final ResolutionLevel level) {
+		final int blockX = level.getXBlockSize(), blockY = level.getYBlockSize();
+		return ((level.getImageSizeX() + blockX - 1) / blockX) *
+			((level.getImageSizeY() + blockY - 1) / blockY);
+	}
+
+}